@@ -18,13 +18,24 @@ public final class R {
         public static final int AnalogClock01=0x7f060004;
         public static final int DigitalClock01=0x7f060005;
         public static final int FileListCurrentPath_TextView=0x7f060000;
+        public static final int FileListFilter_EditText=0x7f06000d;
+        public static final int FileListLoading_ProgressBar=0x7f06000b;
+        public static final int FileListRowDetail_TextView=0x7f060010;
+        public static final int FileListRowIcon_ImageView=0x7f06000e;
+        public static final int FileListRowTitle_TextView=0x7f06000f;
         public static final int FileList_ListView=0x7f060001;
         public static final int FileSelectListOK_Button=0x7f060002;
+        public static final int alarm_latencyText=0x7f060009;
+        public static final int alarm_linearLayout=0x7f060008;
         public static final int moveSettingBottun=0x7f060003;
         public static final int returnBottun=0x7f060007;
+        public static final int selectMusicBottun=0x7f06000c;
+        public static final int setAlarmBottun=0x7f06000a;
         public static final int setting_linearLayout=0x7f060006;
     }
     public static final class layout {
+        public static final int alarm_activity=0x7f030004;
+        public static final int file_list_row=0x7f030005;
         public static final int file_list_view=0x7f030000;
         public static final int file_list_view_dir=0x7f030001;
         public static final int main=0x7f030002;
@@ -37,6 +48,7 @@ public final class R {
         public static final int app_name=0x7f050001;
         public static final int file_list_dont_get_list=0x7f050003;
         public static final int file_list_empty=0x7f050004;
+        public static final int file_list_filter=0x7f050005;
         public static final int file_list_select_here=0x7f050002;
         public static final int hello=0x7f050000;
     }
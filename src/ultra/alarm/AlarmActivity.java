@@ -0,0 +1,211 @@
+package ultra.alarm;
+
+import java.io.IOException;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.view.WindowManager;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+import ultra.alarm.utility.Utility;
+
+/**
+ * アラームが鳴る画面
+ * 鳴らす時刻より前に起動され、再生準備を済ませてから予定時刻ちょうどに再生を始める
+ *
+ * @author maro
+ *
+ */
+public class AlarmActivity extends Activity implements
+		PlayerEventBus.OnPlayerEventListener {
+	/**
+	 * 停止可能時間の初期値 開始時間と終了時間を交互に並べたもの(ミリ秒)
+	 */
+	static final long[] DEFAULT_WINDOWS = { 4300, 5000 };
+
+	/**
+	 * プレイヤー用ビュー
+	 */
+	private UltraPlayerView uPlayerView;
+	/**
+	 * 再生開始の遅れを表示するテキスト
+	 */
+	private TextView latencyText;
+	/**
+	 * 再生開始を予約するハンドラー
+	 */
+	private final Handler handler = new Handler();
+
+	/**
+	 * アラームのID
+	 */
+	private int alarmId;
+	/**
+	 * 鳴らす時刻 System.currentTimeMillis()基準(ミリ秒)
+	 */
+	private long dueTime;
+	/**
+	 * 鳴らす時刻 SystemClock.uptimeMillis()基準(ミリ秒)
+	 */
+	private long dueUptime;
+	/**
+	 * 予定時刻になり再生を指示したか
+	 */
+	private boolean startRequested;
+	/**
+	 * 再生開始の遅れを記録したか
+	 */
+	private boolean recorded;
+
+	/**
+	 * 予定時刻に再生を始める処理
+	 */
+	private final Runnable startTask = new Runnable() {
+		@Override
+		public void run() {
+			startRequested = true;
+			UltraPlayer player = uPlayerView.getPlayer();
+			player.start();
+			// 準備が間に合っていればこの時点で鳴り始めている
+			// 間に合っていなければ準備完了時の再生開始の通知で記録する
+			if (player.isPlaying()) {
+				recordLatency();
+			}
+		}
+	};
+
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		// ロック画面の上に表示し、画面を点けたままにする
+		getWindow().addFlags(
+				WindowManager.LayoutParams.FLAG_SHOW_WHEN_LOCKED
+						| WindowManager.LayoutParams.FLAG_TURN_SCREEN_ON
+						| WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+		setContentView(R.layout.alarm_activity);
+
+		LinearLayout linearLayout = (LinearLayout) findViewById(R.id.alarm_linearLayout);
+		latencyText = (TextView) findViewById(R.id.alarm_latencyText);
+
+		Intent intent = getIntent();
+		alarmId = intent.getIntExtra(AlarmScheduler.EXTRA_ALARM_ID, 0);
+		dueTime = intent.getLongExtra(AlarmScheduler.EXTRA_DUE_TIME,
+				System.currentTimeMillis());
+		// 壁時計の予定時刻をハンドラーの時刻に換算する
+		dueUptime = SystemClock.uptimeMillis()
+				+ (dueTime - System.currentTimeMillis());
+
+		// プレイヤー用ビューの生成 WAVEの曲はPCMで鳴らし、止められる時間をサンプル単位で合わせる
+		uPlayerView = new UltraPlayerView(this, UltraPlayer.ENGINE_AUTO);
+		uPlayerView.getPlayer().addOnPlayerEventListener(this);
+
+		// 登録時の曲と停止可能時間 保存されていればそちらを使う
+		String musicUri = intent.getStringExtra(AlarmScheduler.EXTRA_MUSIC_URI);
+		long[] windows = intent.getLongArrayExtra(AlarmScheduler.EXTRA_WINDOWS);
+		try {
+			AlarmStore store = AlarmStore.getInstance(this);
+			int trackId = store.getAlarmTrackId(alarmId);
+			String path = trackId >= 0 ? store.getTrackPath(trackId) : null;
+			if (path != null) {
+				musicUri = path;
+				windows = store.getWindows(trackId);
+			}
+			if (trackId >= 0 && store.getAlarmDueTime(alarmId) == dueTime) {
+				// 鳴ったアラームは無効にして、端末を再起動しても鳴らし直さない
+				store.putAlarmLater(alarmId, trackId, dueTime, false);
+			}
+		} catch (IOException e) {
+			// 保存先が読めない場合は登録時の情報で鳴らす
+		}
+		if (musicUri == null) {
+			musicUri = "android.resource://" + getPackageName() + "/"
+					+ R.raw.ultra_soul;
+		}
+		if (windows == null) {
+			windows = DEFAULT_WINDOWS;
+		}
+
+		// 音源のセット 再生準備はバックグラウンドで進む
+		uPlayerView.setMusicSource(musicUri);
+		// 停止可能時間のセット
+		for (int i = 0; i + 1 < windows.length; i += 2) {
+			uPlayerView.addTimeRange(windows[i], windows[i + 1]);
+		}
+
+		linearLayout.addView(uPlayerView);
+
+		// 予定時刻に再生を始める 過ぎていればすぐに始まる
+		handler.postAtTime(startTask, dueUptime);
+	}
+
+	/**
+	 * 画面が前面に来た時に呼ばれる処理
+	 */
+	@Override
+	public void onResume() {
+		super.onResume();
+
+		// 表示の更新を再開する
+		uPlayerView.resume();
+	}
+
+	/**
+	 * 画面が前面から外れた時に呼ばれる処理
+	 */
+	@Override
+	public void onPause() {
+		super.onPause();
+
+		// 表示の更新を止める
+		uPlayerView.pause();
+		// 予約した記録の保存をすぐに始める 書き終わるのは待たない
+		Utility.flushWritesLater();
+	}
+
+	/**
+	 * アプリケーション終了時に呼ばれる処理
+	 */
+	@Override
+	public void onDestroy() {
+		super.onDestroy();
+
+		// 再生開始の予約を取り消す
+		handler.removeCallbacks(startTask);
+		// プレイヤーの破棄
+		uPlayerView.destroy();
+		// 起こしておく必要は無くなった
+		AlarmReceiver.releaseWakeLock();
+	}
+
+	/**
+	 * プレイヤーの出来事を受け取る
+	 */
+	@Override
+	public void onPlayerEvent(int type, long position, int value) {
+		// 予定時刻に準備が間に合わず、準備完了後に再生が始まった場合
+		if (type == PlayerEventBus.EVENT_STARTED && startRequested) {
+			recordLatency();
+		}
+	}
+
+	/**
+	 * 予定時刻から再生が始まるまでの遅れを記録して表示する
+	 */
+	private void recordLatency() {
+		if (recorded) {
+			return;
+		}
+		recorded = true;
+		long latency = SystemClock.uptimeMillis() - dueUptime;
+		long timeToReady = uPlayerView.getPlayer().getTimeToReady();
+		AlarmLatencyLog.record(this, alarmId, dueTime, latency, timeToReady);
+		latencyText.setText("再生開始の遅れ: " + latency + "ms (再生準備: "
+				+ timeToReady + "ms)");
+		// 再生が始まれば画面のフラグで起きたままになる
+		AlarmReceiver.releaseWakeLock();
+	}
+}
@@ -0,0 +1,121 @@
+package ultra.alarm;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.os.Process;
+
+import ultra.alarm.utility.Utility;
+
+/**
+ * アラームの予定時刻と実際に再生が始まった時刻の差を記録するクラス
+ * 1行に1回分をカンマ区切りで書き、直近の分だけ残す
+ * 記録の読み書きはバックグラウンドのスレッドで1回分ずつ行う
+ *
+ * @author maro
+ *
+ */
+public class AlarmLatencyLog {
+	/**
+	 * 記録するファイル名
+	 */
+	private static final String FILE_NAME = "alarm_latency.csv";
+	/**
+	 * 残す記録の数
+	 */
+	private static final int MAX_RECORDS = 100;
+
+	/**
+	 * 記録を書き足すスレッド 1つだけなので、続けて記録しても前の分を消さない
+	 */
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+			1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					return new Thread("AlarmLatencyLog") {
+						@Override
+						public void run() {
+							Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+							r.run();
+						}
+					};
+				}
+			});
+
+	static {
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * 1回分を記録する すぐに戻り、読み書きはバックグラウンドで行う
+	 *
+	 * @param context
+	 * @param alarmId
+	 *            アラームのID
+	 * @param dueTime
+	 *            鳴らす予定だった時刻 System.currentTimeMillis()基準(ミリ秒)
+	 * @param latency
+	 *            予定時刻から再生が始まるまでの時間(ミリ秒) 早く始まった場合は負
+	 * @param timeToReady
+	 *            再生準備にかかった時間(ミリ秒)
+	 */
+	public static void record(Context context, final int alarmId,
+			final long dueTime, final long latency, final long timeToReady) {
+		final Context appContext = context.getApplicationContext();
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				append(appContext, alarmId, dueTime, latency, timeToReady);
+			}
+		});
+	}
+
+	/**
+	 * 今までの記録に1回分を書き足す バックグラウンドのスレッドで呼ぶ
+	 *
+	 * @param context
+	 * @param alarmId
+	 * @param dueTime
+	 * @param latency
+	 * @param timeToReady
+	 */
+	private static void append(Context context, int alarmId, long dueTime,
+			long latency, long timeToReady) {
+		String[] lines = read(context);
+		StringBuilder sb = new StringBuilder();
+		// 古い記録から捨てる
+		int from = Math.max(0, lines.length - (MAX_RECORDS - 1));
+		for (int i = from; i < lines.length; i++) {
+			sb.append(lines[i]).append('\n');
+		}
+		sb.append(alarmId).append(',').append(dueTime).append(',')
+				.append(latency).append(',').append(timeToReady).append('\n');
+		// 保存は予約しておき、まとめて書く 予約した内容は次の読み込みで読める
+		Utility.str2fileLater(context, sb.toString(), FILE_NAME);
+	}
+
+	/**
+	 * 記録を読む ファイルを読むので、メインスレッドでは呼ばないこと
+	 *
+	 * @param context
+	 * @return 古い順に並んだ記録 1行が"ID,予定時刻,遅れ,準備時間"
+	 */
+	public static String[] read(Context context) {
+		String log;
+		try {
+			log = Utility.file2str(context, FILE_NAME);
+		} catch (IOException e) {
+			// まだ記録が無い場合や読めない場合は、空から書き直す
+			return new String[0];
+		}
+		if (log.length() == 0) {
+			return new String[0];
+		}
+		return log.split("\n");
+	}
+}
@@ -0,0 +1,64 @@
+package ultra.alarm;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.PowerManager;
+
+/**
+ * AlarmManagerに起こされた時に呼ばれるレシーバー
+ * 端末が眠らないようにウェイクロックを取ってから、アラーム画面を起動する
+ *
+ * @author maro
+ *
+ */
+public class AlarmReceiver extends BroadcastReceiver {
+	/**
+	 * ウェイクロックを持ち続ける最長の時間(ミリ秒)
+	 * アラーム画面が解放し忘れても電池を使い続けないようにする
+	 */
+	private static final long WAKE_LOCK_TIMEOUT = AlarmScheduler.PREWARM_MILLIS
+			+ 60 * 1000;
+
+	/**
+	 * アラーム画面が再生を始めるまで持つウェイクロック
+	 */
+	private static PowerManager.WakeLock wakeLock;
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		// onReceiveから戻ると眠ってしまうことがあるので先に取る
+		acquireWakeLock(context);
+
+		// アラーム画面の起動 登録時の情報をそのまま渡す
+		Intent alarmIntent = new Intent(context, AlarmActivity.class);
+		alarmIntent.putExtras(intent);
+		alarmIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+		context.startActivity(alarmIntent);
+	}
+
+	/**
+	 * ウェイクロックを取る
+	 *
+	 * @param context
+	 */
+	static synchronized void acquireWakeLock(Context context) {
+		if (wakeLock == null) {
+			PowerManager pm = (PowerManager) context
+					.getSystemService(Context.POWER_SERVICE);
+			wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+					"UltraAlarm");
+			wakeLock.setReferenceCounted(false);
+		}
+		wakeLock.acquire(WAKE_LOCK_TIMEOUT);
+	}
+
+	/**
+	 * ウェイクロックを放す
+	 */
+	static synchronized void releaseWakeLock() {
+		if (wakeLock != null && wakeLock.isHeld()) {
+			wakeLock.release();
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package ultra.alarm;
+
+import java.util.Calendar;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * アラームをAlarmManagerに登録するクラス
+ * 鳴らす時刻より少し前に起こしてもらい、その間にプレイヤーの再生準備を済ませる
+ *
+ * @author maro
+ *
+ */
+public class AlarmScheduler {
+	/**
+	 * アラームのID
+	 */
+	public static final String EXTRA_ALARM_ID = "ultra.alarm.extra.ALARM_ID";
+	/**
+	 * 鳴らす時刻 System.currentTimeMillis()基準(ミリ秒)
+	 */
+	public static final String EXTRA_DUE_TIME = "ultra.alarm.extra.DUE_TIME";
+	/**
+	 * 鳴らす音楽のuri
+	 */
+	public static final String EXTRA_MUSIC_URI = "ultra.alarm.extra.MUSIC_URI";
+	/**
+	 * 停止可能時間 開始時間と終了時間を交互に並べたもの(ミリ秒)
+	 */
+	public static final String EXTRA_WINDOWS = "ultra.alarm.extra.WINDOWS";
+
+	/**
+	 * 鳴らす時刻のどれだけ前に起きるか(ミリ秒)
+	 * プロセスの起動と再生準備が終わるのに十分な長さにする
+	 */
+	public static final long PREWARM_MILLIS = 10 * 1000;
+
+	/**
+	 * コンテキスト
+	 */
+	private final Context context;
+	/**
+	 * アラームマネージャー
+	 */
+	private final AlarmManager alarmManager;
+
+	/**
+	 * コンストラクタ
+	 *
+	 * @param context
+	 */
+	public AlarmScheduler(Context context) {
+		this.context = context.getApplicationContext();
+		this.alarmManager = (AlarmManager) context
+				.getSystemService(Context.ALARM_SERVICE);
+	}
+
+	/**
+	 * アラームを登録する 同じIDのアラームは置き換える
+	 *
+	 * @param alarmId
+	 *            アラームのID
+	 * @param dueTime
+	 *            鳴らす時刻 System.currentTimeMillis()基準(ミリ秒)
+	 * @param musicUri
+	 *            鳴らす音楽のuri
+	 * @param windows
+	 *            停止可能時間 開始時間と終了時間を交互に並べたもの(ミリ秒)
+	 */
+	public void schedule(int alarmId, long dueTime, String musicUri,
+			long[] windows) {
+		Intent intent = new Intent(context, AlarmReceiver.class);
+		intent.putExtra(EXTRA_ALARM_ID, alarmId);
+		intent.putExtra(EXTRA_DUE_TIME, dueTime);
+		intent.putExtra(EXTRA_MUSIC_URI, musicUri);
+		intent.putExtra(EXTRA_WINDOWS, windows);
+		PendingIntent operation = PendingIntent.getBroadcast(context, alarmId,
+				intent, PendingIntent.FLAG_UPDATE_CURRENT);
+		// 再生準備の時間を見込んで早めに起こしてもらう
+		long wakeTime = Math.max(System.currentTimeMillis(), dueTime
+				- PREWARM_MILLIS);
+		alarmManager.set(AlarmManager.RTC_WAKEUP, wakeTime, operation);
+	}
+
+	/**
+	 * アラームの登録を取り消す
+	 *
+	 * @param alarmId
+	 *            アラームのID
+	 */
+	public void cancel(int alarmId) {
+		Intent intent = new Intent(context, AlarmReceiver.class);
+		PendingIntent operation = PendingIntent.getBroadcast(context, alarmId,
+				intent, PendingIntent.FLAG_UPDATE_CURRENT);
+		alarmManager.cancel(operation);
+		operation.cancel();
+	}
+
+	/**
+	 * 指定した時刻が次に来る日時を求める
+	 *
+	 * @param hourOfDay
+	 * @param minute
+	 * @param now
+	 *            現在時刻 System.currentTimeMillis()基準(ミリ秒)
+	 * @return 次にその時刻になる日時(ミリ秒) 今日の時刻を過ぎていれば明日
+	 */
+	public static long nextOccurrence(int hourOfDay, int minute, long now) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(now);
+		calendar.set(Calendar.HOUR_OF_DAY, hourOfDay);
+		calendar.set(Calendar.MINUTE, minute);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		if (calendar.getTimeInMillis() <= now) {
+			calendar.add(Calendar.DAY_OF_MONTH, 1);
+		}
+		return calendar.getTimeInMillis();
+	}
+}
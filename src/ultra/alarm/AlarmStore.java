@@ -0,0 +1,902 @@
+package ultra.alarm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import ultra.alarm.utility.Utility;
+import android.content.Context;
+import android.os.Process;
+
+/**
+ * アラーム・曲・停止可能時間を保存するストア
+ * ファイルは32バイト固定長のレコードを追記していく形式で、メモリにマップして読む
+ * 同じキー(種類,持ち主,ID)のレコードは後から書いたものが有効になる
+ * 各レコードはCRC32を持ち、壊れたレコードは開く時に読み飛ばす
+ * 無効なレコードが増えたら有効なものだけを書き直して小さくする
+ * アプリ全体で1つのインスタンスをgetInstanceで共有する
+ *
+ * 曲の場所と停止可能時間は、いくつかのレコードを1組として書き換える
+ * 組のレコードは持ち主の上位8ビットに組の番号を持ち、最後に書く曲のレコードが
+ * 組の番号と組のレコード全体のCRC32を持つ
+ * 曲のレコードまで書き終わっていない組は、開く時に捨てる
+ *
+ * レコードの形式(リトルエンディアン)
+ * <pre>
+ *  0: int  種類 最上位ビットが立っていれば削除
+ *  4: int  ID
+ *  8: int  持ち主のID
+ * 12: long 値a
+ * 20: long 値b
+ * 28: int  0〜27バイト目のCRC32
+ * </pre>
+ * 曲のレコードは持ち主が組の番号、値aの上位32ビットが組のCRC32、下位32ビットが場所のバイト数
+ *
+ * @author maro
+ *
+ */
+public class AlarmStore {
+	/**
+	 * アラーム ID=アラームのID 持ち主=曲のID a=鳴らす時刻 b=有効なら1
+	 */
+	public static final int KIND_ALARM = 1;
+	/**
+	 * 停止可能時間 ID=曲の中での番号 持ち主=曲のID a=開始時間 b=終了時間
+	 */
+	public static final int KIND_WINDOW = 2;
+	/**
+	 * 曲 ID=曲のID 持ち主=組の番号 a=組のCRC32と場所のバイト数 b=停止可能時間の数
+	 */
+	public static final int KIND_TRACK = 3;
+	/**
+	 * 曲の場所の断片 ID=断片の番号 持ち主=曲のID a,b=UTF-8で16バイトずつ
+	 */
+	public static final int KIND_PATH = 4;
+
+	/**
+	 * 画面から設定する曲のID
+	 */
+	public static final int DEFAULT_TRACK_ID = 0;
+
+	/**
+	 * 保存するファイル名
+	 */
+	private static final String FILE_NAME = "alarm_store.bin";
+	/**
+	 * レコードの長さ
+	 */
+	private static final int RECORD_BYTES = 32;
+	/**
+	 * CRCを計算する範囲の長さ
+	 */
+	private static final int CRC_OFFSET = 28;
+	/**
+	 * 削除を表すビット
+	 */
+	private static final int DELETED = 0x80000000;
+	/**
+	 * 場所の断片1つに入るバイト数
+	 */
+	private static final int PATH_CHUNK_BYTES = 16;
+	/**
+	 * 書き直しを検討し始めるレコード数
+	 */
+	private static final int COMPACT_THRESHOLD = 64;
+	/**
+	 * 持ち主のIDのうち組の番号を入れるビットの位置
+	 */
+	private static final int GENERATION_SHIFT = 24;
+	/**
+	 * 組の番号の最大値
+	 */
+	private static final int GENERATION_MASK = 0xff;
+
+	/**
+	 * アプリ全体で共有するインスタンス
+	 */
+	private static AlarmStore instance;
+
+	/**
+	 * ディスクへの反映を後回しにした書き込みを反映するスレッド
+	 */
+	private static final ThreadPoolExecutor syncer = new ThreadPoolExecutor(1,
+			1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					return new Thread("AlarmStore-sync") {
+						@Override
+						public void run() {
+							Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+							r.run();
+						}
+					};
+				}
+			});
+
+	static {
+		syncer.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * 保存先
+	 */
+	private final File file;
+	/**
+	 * 追記用のファイル
+	 */
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	/**
+	 * 読み出し用のマップ
+	 */
+	private MappedByteBuffer map;
+	/**
+	 * マップした長さ
+	 */
+	private long mappedSize;
+	/**
+	 * 書き込んだレコードの終わり
+	 */
+	private long size;
+	/**
+	 * キーから有効なレコードの位置への索引
+	 */
+	private final HashMap<Long, Integer> index = new HashMap<Long, Integer>();
+	/**
+	 * レコードの組み立て用
+	 */
+	private final ByteBuffer record = ByteBuffer.allocate(RECORD_BYTES).order(
+			ByteOrder.LITTLE_ENDIAN);
+	private final byte[] scratch = new byte[RECORD_BYTES];
+	private final CRC32 crc = new CRC32();
+	/**
+	 * 書いている組のCRC32
+	 */
+	private final CRC32 setCrc = new CRC32();
+	/**
+	 * 最後に書いた組の番号
+	 */
+	private int generation;
+	/**
+	 * ディスクへの反映を待っている書き込みがあるか
+	 */
+	private boolean syncPending;
+
+	/**
+	 * コンストラクタ ファイルを開いて索引を作る
+	 *
+	 * @param file
+	 *            保存先
+	 * @throws IOException
+	 */
+	private AlarmStore(File file) throws IOException {
+		this.file = file;
+		open();
+	}
+
+	/**
+	 * アプリ全体で共有するストア 初めて呼ばれた時にアプリのファイル領域のファイルを開く
+	 * ファイルを開いたままにするので閉じない
+	 *
+	 * @param context
+	 * @return
+	 * @throws IOException
+	 */
+	public static synchronized AlarmStore getInstance(Context context)
+			throws IOException {
+		if (instance == null) {
+			instance = new AlarmStore(new File(context.getApplicationContext()
+					.getFilesDir(), FILE_NAME));
+		}
+		return instance;
+	}
+
+	/**
+	 * ファイルを開いて索引を作る
+	 * 壊れたレコードは読み飛ばし、曲のレコードで確定していない組は使わない
+	 * 最後に確定したレコードより後ろは書き込み途中で終わったものなので切り捨てる
+	 *
+	 * @throws IOException
+	 */
+	private void open() throws IOException {
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		long length = channel.size();
+		// 端数はレコードの書き込み途中で終わったもの
+		size = length - length % RECORD_BYTES;
+		remap();
+		index.clear();
+		generation = 0;
+		// 確定を待っている組のレコードの位置
+		ArrayList<Integer> pending = new ArrayList<Integer>();
+		int pendingGeneration = -1;
+		long committed = 0;
+		for (int pos = 0; pos < size; pos += RECORD_BYTES) {
+			if (!isValid(pos)) {
+				continue;
+			}
+			int kind = map.getInt(pos);
+			int id = map.getInt(pos + 4);
+			int owner = map.getInt(pos + 8);
+			int base = kind & ~DELETED;
+			if (base == KIND_PATH || base == KIND_WINDOW) {
+				int recordGeneration = owner >>> GENERATION_SHIFT;
+				if (recordGeneration != pendingGeneration) {
+					// 前の組は確定しないまま終わっている
+					pending.clear();
+					setCrc.reset();
+					pendingGeneration = recordGeneration;
+				}
+				pending.add(pos);
+				setCrc.update(scratch, 0, RECORD_BYTES);
+				continue;
+			}
+			if (base == KIND_TRACK) {
+				if (owner != pendingGeneration) {
+					pending.clear();
+					setCrc.reset();
+				}
+				long check = map.getLong(pos + 12) >>> 32;
+				if (check == setCrc.getValue()) {
+					for (int i = 0; i < pending.size(); i++) {
+						int p = pending.get(i);
+						index(map.getInt(p), map.getInt(p + 8),
+								map.getInt(p + 4), p);
+					}
+					index(kind, owner, id, pos);
+					generation = owner;
+					committed = pos + RECORD_BYTES;
+				}
+				pending.clear();
+				setCrc.reset();
+				pendingGeneration = -1;
+				continue;
+			}
+			index(kind, owner, id, pos);
+			committed = pos + RECORD_BYTES;
+		}
+		size = committed;
+		if (size != length) {
+			channel.truncate(size);
+			remap();
+		}
+	}
+
+	/**
+	 * 読んだレコードで索引を更新する
+	 */
+	private void index(int kind, int owner, int id, int pos) {
+		long k = key(kind & ~DELETED, owner, id);
+		if ((kind & DELETED) != 0) {
+			index.remove(k);
+		} else {
+			index.put(k, pos);
+		}
+	}
+
+	/**
+	 * ファイル全体をマップし直す
+	 *
+	 * @throws IOException
+	 */
+	private void remap() throws IOException {
+		map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		map.order(ByteOrder.LITTLE_ENDIAN);
+		mappedSize = size;
+	}
+
+	/**
+	 * 追記したレコードまで読めるようにする
+	 *
+	 * @throws IOException
+	 */
+	private void ensureMapped() throws IOException {
+		if (mappedSize != size) {
+			remap();
+		}
+	}
+
+	/**
+	 * レコードのCRCを確かめる
+	 *
+	 * @param pos
+	 * @return
+	 */
+	private boolean isValid(int pos) {
+		map.position(pos);
+		map.get(scratch, 0, RECORD_BYTES);
+		crc.reset();
+		crc.update(scratch, 0, CRC_OFFSET);
+		return (int) crc.getValue() == map.getInt(pos + CRC_OFFSET);
+	}
+
+	/**
+	 * 索引のキー 持ち主のIDは下位24ビットだけを使う
+	 * アラームは鳴らす曲を変えても同じものなので、持ち主をキーに含めない
+	 * 曲の持ち主は組の番号なので、キーに含めない
+	 *
+	 * @param kind
+	 * @param owner
+	 * @param id
+	 * @return
+	 */
+	private static long key(int kind, int owner, int id) {
+		if (kind == KIND_ALARM || kind == KIND_TRACK) {
+			owner = 0;
+		}
+		return ((long) kind << 56) | ((owner & 0xffffffL) << 32)
+				| (id & 0xffffffffL);
+	}
+
+	/**
+	 * レコードをrecordに組み立てる
+	 */
+	private void encode(int kind, int id, int owner, long a, long b) {
+		record.clear();
+		record.putInt(kind);
+		record.putInt(id);
+		record.putInt(owner);
+		record.putLong(a);
+		record.putLong(b);
+		crc.reset();
+		crc.update(record.array(), 0, CRC_OFFSET);
+		record.putInt((int) crc.getValue());
+		record.flip();
+	}
+
+	/**
+	 * レコードを1つ追記して索引を更新する
+	 *
+	 * @throws IOException
+	 */
+	private void append(int kind, int id, int owner, long a, long b)
+			throws IOException {
+		encode(kind, id, owner, a, b);
+		while (record.hasRemaining()) {
+			channel.write(record, size + record.position());
+		}
+		index(kind, owner, id, (int) size);
+		size += RECORD_BYTES;
+	}
+
+	/**
+	 * 組の書き込みを始める
+	 */
+	private void beginSet() {
+		generation = (generation + 1) & GENERATION_MASK;
+		setCrc.reset();
+	}
+
+	/**
+	 * 組のレコードを1つ追記する
+	 *
+	 * @param trackId
+	 *            曲のID
+	 * @throws IOException
+	 */
+	private void appendToSet(int kind, int id, int trackId, long a, long b)
+			throws IOException {
+		append(kind, id, trackId | generation << GENERATION_SHIFT, a, b);
+		setCrc.update(record.array(), 0, RECORD_BYTES);
+	}
+
+	/**
+	 * 曲のレコードを追記して組を確定する
+	 *
+	 * @param trackId
+	 *            曲のID
+	 * @param pathBytes
+	 *            場所のバイト数
+	 * @param windowCount
+	 *            停止可能時間の数
+	 * @throws IOException
+	 */
+	private void commitSet(int trackId, int pathBytes, int windowCount)
+			throws IOException {
+		append(KIND_TRACK, trackId, generation, setCrc.getValue() << 32
+				| (pathBytes & 0xffffffffL), windowCount);
+	}
+
+	/**
+	 * 書き込みをディスクに反映し、無効なレコードが多ければ書き直す
+	 *
+	 * @throws IOException
+	 */
+	private void commit() throws IOException {
+		channel.force(false);
+		syncPending = false;
+		long records = size / RECORD_BYTES;
+		if (records >= COMPACT_THRESHOLD && records > index.size() * 2) {
+			compact();
+		}
+	}
+
+	/**
+	 * ディスクへの反映をバックグラウンドのスレッドで行う
+	 * 書き込んだ内容は索引に反映済みなので、すぐに読み出せる
+	 */
+	private void commitLater() {
+		if (syncPending) {
+			return;
+		}
+		syncPending = true;
+		syncer.execute(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (AlarmStore.this) {
+					if (!syncPending) {
+						return;
+					}
+					try {
+						commit();
+					} catch (IOException e) {
+						Utility.outputDebugLog(e.toString());
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * 有効なレコードの位置 無ければ-1
+	 */
+	private int find(int kind, int owner, int id) throws IOException {
+		Integer pos = index.get(key(kind, owner, id));
+		if (pos == null) {
+			return -1;
+		}
+		ensureMapped();
+		return pos;
+	}
+
+	// 曲==================================================================
+
+	/**
+	 * 曲の場所を保存する 停止可能時間はそのまま残す
+	 * 途中で書き込みが止まった場合は前の場所のままになる
+	 *
+	 * @param trackId
+	 *            曲のID
+	 * @param path
+	 *            曲のパスまたはuri
+	 * @throws IOException
+	 */
+	public synchronized void putTrack(int trackId, String path)
+			throws IOException {
+		writeTrack(trackId, path);
+		commit();
+	}
+
+	/**
+	 * 曲の場所を1組として書き込む
+	 *
+	 * @param trackId
+	 * @param path
+	 * @throws IOException
+	 */
+	private void writeTrack(int trackId, String path) throws IOException {
+		byte[] bytes = path.getBytes("UTF-8");
+		ByteBuffer chunk = ByteBuffer.allocate(PATH_CHUNK_BYTES).order(
+				ByteOrder.LITTLE_ENDIAN);
+		int chunks = (bytes.length + PATH_CHUNK_BYTES - 1) / PATH_CHUNK_BYTES;
+		int oldChunks = (getPathBytes(trackId) + PATH_CHUNK_BYTES - 1)
+				/ PATH_CHUNK_BYTES;
+		beginSet();
+		for (int i = 0; i < chunks; i++) {
+			chunk.clear();
+			int from = i * PATH_CHUNK_BYTES;
+			chunk.put(bytes, from, Math.min(PATH_CHUNK_BYTES, bytes.length
+					- from));
+			while (chunk.hasRemaining()) {
+				chunk.put((byte) 0);
+			}
+			appendToSet(KIND_PATH, i, trackId, chunk.getLong(0), chunk
+					.getLong(8));
+		}
+		// 前の場所の方が長かった場合の余った断片を消す
+		for (int i = chunks; i < oldChunks; i++) {
+			appendToSet(KIND_PATH | DELETED, i, trackId, 0, 0);
+		}
+		commitSet(trackId, bytes.length, getWindowCount(trackId));
+	}
+
+	/**
+	 * 曲が保存されていない場合だけ、場所と停止可能時間を保存する
+	 *
+	 * @param trackId
+	 *            曲のID
+	 * @param path
+	 *            曲のパスまたはuri
+	 * @param windows
+	 *            開始時間と終了時間を交互に並べたもの(ミリ秒)
+	 * @return 保存した場合true
+	 * @throws IOException
+	 */
+	public synchronized boolean putTrackIfAbsent(int trackId, String path,
+			long[] windows) throws IOException {
+		if (find(KIND_TRACK, 0, trackId) >= 0) {
+			return false;
+		}
+		writeTrack(trackId, path);
+		writeWindows(trackId, windows);
+		commit();
+		return true;
+	}
+
+	/**
+	 * 曲が保存されていなければ場所と停止可能時間を保存し、ディスクへの反映はバックグラウンドで行う
+	 * メインスレッドを待たせたくない場合に使う
+	 *
+	 * @param trackId
+	 *            曲のID
+	 * @param path
+	 *            曲のパスまたはuri
+	 * @param windows
+	 *            開始時間と終了時間を交互に並べたもの(ミリ秒)
+	 * @return 保存した場合true
+	 * @throws IOException
+	 */
+	public synchronized boolean putTrackIfAbsentLater(int trackId,
+			String path, long[] windows) throws IOException {
+		if (find(KIND_TRACK, 0, trackId) >= 0) {
+			return false;
+		}
+		writeTrack(trackId, path);
+		writeWindows(trackId, windows);
+		commitLater();
+		return true;
+	}
+
+	/**
+	 * 曲の場所を取得する
+	 *
+	 * @param trackId
+	 *            曲のID
+	 * @return 保存されていない場合はnull
+	 * @throws IOException
+	 */
+	public synchronized String getTrackPath(int trackId) throws IOException {
+		if (find(KIND_TRACK, 0, trackId) < 0) {
+			return null;
+		}
+		int length = getPathBytes(trackId);
+		byte[] bytes = new byte[length];
+		for (int i = 0; i * PATH_CHUNK_BYTES < length; i++) {
+			int from = i * PATH_CHUNK_BYTES;
+			int pos = find(KIND_PATH, trackId, i);
+			if (pos < 0) {
+				return null;
+			}
+			map.position(pos + 12);
+			map.get(bytes, from, Math.min(PATH_CHUNK_BYTES, length - from));
+		}
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * 曲の停止可能時間をすべて置き換える
+	 * 途中で書き込みが止まった場合は前の停止可能時間のままになる
+	 *
+	 * @param trackId
+	 *            曲のID
+	 * @param windows
+	 *            開始時間と終了時間を交互に並べたもの(ミリ秒)
+	 * @throws IOException
+	 */
+	public synchronized void setWindows(int trackId, long[] windows)
+			throws IOException {
+		writeWindows(trackId, windows);
+		commit();
+	}
+
+	/**
+	 * 曲の停止可能時間をすべて置き換え、ディスクへの反映はバックグラウンドで行う
+	 * 画面を離れる時のようにメインスレッドを待たせたくない場合に使う
+	 *
+	 * @param trackId
+	 *            曲のID
+	 * @param windows
+	 *            開始時間と終了時間を交互に並べたもの(ミリ秒)
+	 * @throws IOException
+	 */
+	public synchronized void setWindowsLater(int trackId, long[] windows)
+			throws IOException {
+		writeWindows(trackId, windows);
+		commitLater();
+	}
+
+	/**
+	 * 曲の停止可能時間を1組として書き込む
+	 *
+	 * @param trackId
+	 * @param windows
+	 * @throws IOException
+	 */
+	private void writeWindows(int trackId, long[] windows) throws IOException {
+		int count = windows.length / 2;
+		int oldCount = getWindowCount(trackId);
+		beginSet();
+		for (int i = 0; i < count; i++) {
+			appendToSet(KIND_WINDOW, i, trackId, windows[i * 2],
+					windows[i * 2 + 1]);
+		}
+		for (int i = count; i < oldCount; i++) {
+			appendToSet(KIND_WINDOW | DELETED, i, trackId, 0, 0);
+		}
+		commitSet(trackId, getPathBytes(trackId), count);
+	}
+
+	/**
+	 * 曲の停止可能時間を取得する
+	 *
+	 * @param trackId
+	 *            曲のID
+	 * @return 開始時間と終了時間を交互に並べたもの(ミリ秒) 保存されていない場合は長さ0
+	 * @throws IOException
+	 */
+	public synchronized long[] getWindows(int trackId) throws IOException {
+		int count = getWindowCount(trackId);
+		long[] windows = new long[count * 2];
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			int pos = find(KIND_WINDOW, trackId, i);
+			if (pos >= 0) {
+				windows[n++] = map.getLong(pos + 12);
+				windows[n++] = map.getLong(pos + 20);
+			}
+		}
+		if (n < windows.length) {
+			long[] shrunk = new long[n];
+			System.arraycopy(windows, 0, shrunk, 0, n);
+			return shrunk;
+		}
+		return windows;
+	}
+
+	/**
+	 * 曲の場所のバイト数
+	 *
+	 * @param trackId
+	 * @return 曲が保存されていない場合は0
+	 * @throws IOException
+	 */
+	private int getPathBytes(int trackId) throws IOException {
+		int pos = find(KIND_TRACK, 0, trackId);
+		return pos < 0 ? 0 : map.getInt(pos + 12);
+	}
+
+	/**
+	 * 曲の停止可能時間の数
+	 *
+	 * @param trackId
+	 * @return 曲が保存されていない場合は0
+	 * @throws IOException
+	 */
+	private int getWindowCount(int trackId) throws IOException {
+		int pos = find(KIND_TRACK, 0, trackId);
+		return pos < 0 ? 0 : (int) map.getLong(pos + 20);
+	}
+
+	// アラーム==============================================================
+
+	/**
+	 * アラームを保存する
+	 *
+	 * @param alarmId
+	 *            アラームのID
+	 * @param trackId
+	 *            鳴らす曲のID
+	 * @param dueTime
+	 *            鳴らす時刻 System.currentTimeMillis()基準(ミリ秒)
+	 * @param enabled
+	 *            有効かどうか
+	 * @throws IOException
+	 */
+	public synchronized void putAlarm(int alarmId, int trackId, long dueTime,
+			boolean enabled) throws IOException {
+		append(KIND_ALARM, alarmId, trackId, dueTime, enabled ? 1 : 0);
+		commit();
+	}
+
+	/**
+	 * アラームを保存し、ディスクへの反映はバックグラウンドで行う
+	 * メインスレッドを待たせたくない場合に使う
+	 *
+	 * @param alarmId
+	 *            アラームのID
+	 * @param trackId
+	 *            鳴らす曲のID
+	 * @param dueTime
+	 *            鳴らす時刻 System.currentTimeMillis()基準(ミリ秒)
+	 * @param enabled
+	 *            有効かどうか
+	 * @throws IOException
+	 */
+	public synchronized void putAlarmLater(int alarmId, int trackId,
+			long dueTime, boolean enabled) throws IOException {
+		append(KIND_ALARM, alarmId, trackId, dueTime, enabled ? 1 : 0);
+		commitLater();
+	}
+
+	/**
+	 * 保存されているアラームのIDの一覧
+	 *
+	 * @return 小さい順に並んだID
+	 */
+	public synchronized int[] getAlarmIds() {
+		int[] ids = new int[index.size()];
+		int n = 0;
+		for (Iterator<Long> it = index.keySet().iterator(); it.hasNext();) {
+			long k = it.next();
+			if ((int) (k >>> 56) == KIND_ALARM) {
+				ids[n++] = (int) k;
+			}
+		}
+		Arrays.sort(ids, 0, n);
+		int[] result = new int[n];
+		System.arraycopy(ids, 0, result, 0, n);
+		return result;
+	}
+
+	/**
+	 * アラームで鳴らす曲のID
+	 *
+	 * @param alarmId
+	 * @return 保存されていない場合は-1
+	 * @throws IOException
+	 */
+	public synchronized int getAlarmTrackId(int alarmId) throws IOException {
+		int pos = findAlarm(alarmId);
+		return pos < 0 ? -1 : map.getInt(pos + 8);
+	}
+
+	/**
+	 * アラームを鳴らす時刻
+	 *
+	 * @param alarmId
+	 * @return System.currentTimeMillis()基準(ミリ秒) 保存されていない場合は0
+	 * @throws IOException
+	 */
+	public synchronized long getAlarmDueTime(int alarmId) throws IOException {
+		int pos = findAlarm(alarmId);
+		return pos < 0 ? 0 : map.getLong(pos + 12);
+	}
+
+	/**
+	 * アラームが有効かどうか
+	 *
+	 * @param alarmId
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized boolean isAlarmEnabled(int alarmId) throws IOException {
+		int pos = findAlarm(alarmId);
+		return pos >= 0 && map.getLong(pos + 20) != 0;
+	}
+
+	/**
+	 * アラームのレコードの位置 無ければ-1
+	 */
+	private int findAlarm(int alarmId) throws IOException {
+		return find(KIND_ALARM, 0, alarmId);
+	}
+
+	// 管理==================================================================
+
+	/**
+	 * 有効なレコードだけを一時ファイルに書き出し、置き換える
+	 * 曲の場所と停止可能時間は、曲ごとに新しい組として書き直す
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void compact() throws IOException {
+		ensureMapped();
+		File temp = new File(file.getPath() + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(temp, "rw");
+		boolean success = false;
+		try {
+			out.setLength(0);
+			// 書いた順に並べ直して、同じ内容になるようにする
+			long[] entries = new long[index.size()];
+			int n = 0;
+			for (Iterator<Map.Entry<Long, Integer>> it = index.entrySet()
+					.iterator(); it.hasNext();) {
+				Map.Entry<Long, Integer> e = it.next();
+				int kind = (int) (e.getKey() >>> 56);
+				if (kind != KIND_PATH && kind != KIND_WINDOW) {
+					// 組のレコードは曲のレコードと一緒に書く
+					entries[n++] = (long) e.getValue() << 32
+							| (e.getKey() & 0xffffffffL);
+				}
+			}
+			Arrays.sort(entries, 0, n);
+			int written = 0;
+			for (int i = 0; i < n; i++) {
+				int pos = (int) (entries[i] >>> 32);
+				if (map.getInt(pos) == KIND_TRACK) {
+					written = (written + 1) & GENERATION_MASK;
+					writeSet(out, (int) entries[i], pos, written);
+				} else {
+					map.position(pos);
+					map.get(scratch, 0, RECORD_BYTES);
+					out.write(scratch, 0, RECORD_BYTES);
+				}
+			}
+			out.getChannel().force(false);
+			success = true;
+		} finally {
+			out.close();
+			if (!success) {
+				temp.delete();
+			}
+		}
+		channel.close();
+		raf.close();
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			open();
+			throw new IOException("cannot rename " + temp);
+		}
+		open();
+	}
+
+	/**
+	 * 曲の場所と停止可能時間を1組として書き出す compactから呼ぶ
+	 *
+	 * @param out
+	 * @param trackId
+	 *            曲のID
+	 * @param pos
+	 *            曲のレコードの位置
+	 * @param setGeneration
+	 *            書き出す組の番号
+	 * @throws IOException
+	 */
+	private void writeSet(RandomAccessFile out, int trackId, int pos,
+			int setGeneration) throws IOException {
+		int pathBytes = map.getInt(pos + 12);
+		int windowCount = (int) map.getLong(pos + 20);
+		int owner = trackId | setGeneration << GENERATION_SHIFT;
+		setCrc.reset();
+		for (int i = 0; i * PATH_CHUNK_BYTES < pathBytes; i++) {
+			writeSetRecord(out, KIND_PATH, i, trackId, owner);
+		}
+		for (int i = 0; i < windowCount; i++) {
+			writeSetRecord(out, KIND_WINDOW, i, trackId, owner);
+		}
+		encode(KIND_TRACK, trackId, setGeneration, setCrc.getValue() << 32
+				| (pathBytes & 0xffffffffL), windowCount);
+		out.write(record.array(), 0, RECORD_BYTES);
+	}
+
+	/**
+	 * 組のレコードを組の番号を付け替えて書き出す 無い場合は何もしない
+	 *
+	 * @throws IOException
+	 */
+	private void writeSetRecord(RandomAccessFile out, int kind, int id,
+			int trackId, int owner) throws IOException {
+		int pos = find(kind, trackId, id);
+		if (pos < 0) {
+			return;
+		}
+		encode(kind, id, owner, map.getLong(pos + 12), map.getLong(pos + 20));
+		out.write(record.array(), 0, RECORD_BYTES);
+		setCrc.update(record.array(), 0, RECORD_BYTES);
+	}
+}
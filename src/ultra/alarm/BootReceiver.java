@@ -0,0 +1,52 @@
+package ultra.alarm;
+
+import java.io.IOException;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import ultra.alarm.utility.Utility;
+
+/**
+ * 端末の起動時に呼ばれるレシーバー
+ * AlarmManagerへの登録は再起動で消えるので、保存されている有効なアラームを登録し直す
+ *
+ * @author maro
+ *
+ */
+public class BootReceiver extends BroadcastReceiver {
+	/**
+	 * 電源が切れている間に過ぎた時刻でも、これより遅れていなければ鳴らす(ミリ秒)
+	 * 鳴らす直前に再起動した場合に鳴らし損ねないようにする
+	 */
+	private static final long MISSED_GRACE_MILLIS = 10 * 60 * 1000;
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		if (!Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
+			return;
+		}
+		AlarmScheduler scheduler = new AlarmScheduler(context);
+		long now = System.currentTimeMillis();
+		try {
+			AlarmStore store = AlarmStore.getInstance(context);
+			for (int alarmId : store.getAlarmIds()) {
+				if (!store.isAlarmEnabled(alarmId)) {
+					continue;
+				}
+				int trackId = store.getAlarmTrackId(alarmId);
+				long dueTime = store.getAlarmDueTime(alarmId);
+				if (dueTime < now - MISSED_GRACE_MILLIS) {
+					// 鳴らし損ねてから時間が経っているので、もう鳴らさない
+					store.putAlarm(alarmId, trackId, dueTime, false);
+					continue;
+				}
+				// 曲と停止可能時間はアラーム画面が保存先から読み直す
+				scheduler.schedule(alarmId, dueTime, null, null);
+			}
+		} catch (IOException e) {
+			Utility.outputDebugLog("BootReceiver: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package ultra.alarm;
+
+import java.io.IOException;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.media.MediaPlayer.OnCompletionListener;
+import android.media.MediaPlayer.OnErrorListener;
+import android.media.MediaPlayer.OnPreparedListener;
+import android.media.MediaPlayer.OnSeekCompleteListener;
+import android.net.Uri;
+
+/**
+ * MediaPlayerを使う再生エンジン
+ * 圧縮された音源をそのまま再生できるが、停止や再生位置の取得には遅れと揺らぎがある
+ *
+ * @author maro
+ *
+ */
+public class MediaPlayerEngine implements PlaybackEngine,
+		OnCompletionListener, OnSeekCompleteListener, OnPreparedListener,
+		OnErrorListener {
+	/**
+	 * 音楽再生用メディアプレイヤー
+	 */
+	private MediaPlayer mediaPlayer;
+
+	/**
+	 * リスナー
+	 */
+	private Listener listener;
+
+	/**
+	 * コンストラクタ
+	 */
+	public MediaPlayerEngine() {
+		// メディアプレイヤーの生成
+		mediaPlayer = new MediaPlayer();
+		// ストリームタイプの設定
+		mediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC); // 音楽の再生モード
+		// リスナーのセット
+		mediaPlayer.setOnCompletionListener(this);
+		mediaPlayer.setOnSeekCompleteListener(this);
+		mediaPlayer.setOnPreparedListener(this);
+		mediaPlayer.setOnErrorListener(this);
+	}
+
+	@Override
+	public void setDataSource(String path) throws IOException {
+		mediaPlayer.setDataSource(path);
+	}
+
+	@Override
+	public void setDataSource(Context context, Uri uri) throws IOException {
+		mediaPlayer.setDataSource(context, uri);
+	}
+
+	@Override
+	public void prepare() throws IOException {
+		mediaPlayer.prepare();
+	}
+
+	@Override
+	public void prepareAsync() {
+		mediaPlayer.prepareAsync();
+	}
+
+	/**
+	 * 準備中に呼んだ場合もMediaPlayerが準備を取り消す
+	 */
+	@Override
+	public void reset() {
+		mediaPlayer.reset();
+	}
+
+	@Override
+	public void start() {
+		mediaPlayer.start();
+	}
+
+	@Override
+	public void pause() {
+		mediaPlayer.pause();
+	}
+
+	/**
+	 * MediaPlayerは位置を指定して止められないため、通常の一時停止を行う
+	 */
+	@Override
+	public void pauseAt(long positionMillis) {
+		mediaPlayer.pause();
+	}
+
+	@Override
+	public void stop() {
+		mediaPlayer.stop();
+	}
+
+	@Override
+	public void release() {
+		mediaPlayer.release();
+		mediaPlayer = null;
+	}
+
+	@Override
+	public boolean isPlaying() {
+		return mediaPlayer.isPlaying();
+	}
+
+	@Override
+	public void seekTo(int msec) {
+		mediaPlayer.seekTo(msec);
+	}
+
+	@Override
+	public int getCurrentPosition() {
+		return mediaPlayer.getCurrentPosition();
+	}
+
+	@Override
+	public int getDuration() {
+		return mediaPlayer.getDuration();
+	}
+
+	@Override
+	public void setLooping(boolean looping) {
+		mediaPlayer.setLooping(looping);
+	}
+
+	/**
+	 * MediaPlayerは区間のループができないため、常にfalseを返す
+	 */
+	@Override
+	public boolean setLoopRegion(long startMillis, long endMillis) {
+		return false;
+	}
+
+	@Override
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * メディアファイルの再生が終った時のイベント
+	 */
+	@Override
+	public void onCompletion(MediaPlayer mp) {
+		if (listener != null) {
+			listener.onCompletion(this);
+		}
+	}
+
+	/**
+	 * 非同期の再生準備が完了した時のイベント
+	 */
+	@Override
+	public void onPrepared(MediaPlayer mp) {
+		if (listener != null) {
+			listener.onPrepared(this);
+		}
+	}
+
+	/**
+	 * エラーが起きた時のイベント
+	 */
+	@Override
+	public boolean onError(MediaPlayer mp, int what, int extra) {
+		if (listener != null) {
+			listener.onError(this, "MediaPlayer error (" + what + ", "
+					+ extra + ")");
+		}
+		return true;
+	}
+
+	/**
+	 * シークが完了した時のイベント
+	 */
+	@Override
+	public void onSeekComplete(MediaPlayer mp) {
+		if (listener != null) {
+			listener.onSeekComplete(this);
+		}
+	}
+}
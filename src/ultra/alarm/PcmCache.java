@@ -0,0 +1,709 @@
+package ultra.alarm;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
+import android.net.Uri;
+import android.util.TypedValue;
+
+/**
+ * 変換済みPCMのディスクキャッシュ
+ * 音源の場所と更新時刻、内容から求めた指紋、変換形式をキーにして、16bitリトルエンディアンのPCMを保存する
+ * 2回目以降は変換を行わず、保存したファイルをメモリにマップして返す
+ * 合計サイズが上限を超えた場合は、最後に使ってから時間が経ったものから消す
+ *
+ * @author maro
+ *
+ */
+public class PcmCache {
+	/**
+	 * キャッシュディレクトリ名
+	 */
+	private static final String DIR_NAME = "pcm";
+	/**
+	 * キャッシュファイルの拡張子
+	 */
+	private static final String SUFFIX = ".pcm";
+	/**
+	 * 書き込み途中のファイルの拡張子
+	 */
+	private static final String TEMP_SUFFIX = ".tmp";
+	/**
+	 * 書き込み途中のファイルを残しておく時間(ミリ秒)
+	 * これより古いものは書き込みが失敗して残ったものとみなして消す
+	 */
+	private static final long TEMP_EXPIRE_MILLIS = 60 * 60 * 1000L;
+	/**
+	 * キャッシュの合計サイズの上限の初期値(バイト)
+	 */
+	private static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+	/**
+	 * 変換形式のバージョン 変換方法を変えたら上げる
+	 */
+	private static final int FORMAT_VERSION = 1;
+	/**
+	 * キャッシュファイルの識別子 "UPCM"
+	 */
+	private static final int MAGIC = 0x4d435055;
+	/**
+	 * キャッシュファイルのヘッダの長さ
+	 * 識別子,バージョン,チャンネル数,サンプリングレート,フレーム数
+	 */
+	private static final int HEADER_BYTES = 16;
+	/**
+	 * 指紋を求めるために読む先頭のバイト数
+	 */
+	private static final int FINGERPRINT_BYTES = 64 * 1024;
+	/**
+	 * 変換時に一度に処理するフレーム数
+	 */
+	private static final int CONVERT_FRAMES = 1024;
+
+	/**
+	 * WAVEファイルのチャンクID リトルエンディアンで読んだ値
+	 */
+	private static final int CHUNK_RIFF = 0x46464952;
+	private static final int CHUNK_WAVE = 0x45564157;
+	private static final int CHUNK_FMT = 0x20746d66;
+	private static final int CHUNK_DATA = 0x61746164;
+	/**
+	 * WAVEファイルのフォーマットID
+	 */
+	private static final int WAVE_FORMAT_PCM = 1;
+	private static final int WAVE_FORMAT_IEEE_FLOAT = 3;
+	private static final int WAVE_FORMAT_EXTENSIBLE = 0xfffe;
+	/**
+	 * WAVEファイルの拡張子
+	 */
+	private static final String WAVE_EXTENSION = ".wav";
+
+	/**
+	 * キャッシュディレクトリ
+	 */
+	private final File dir;
+	/**
+	 * 合計サイズの上限(バイト)
+	 */
+	private final long maxBytes;
+
+	/**
+	 * アプリのキャッシュディレクトリを使うコンストラクタ
+	 *
+	 * @param context
+	 */
+	public PcmCache(Context context) {
+		this(new File(context.getCacheDir(), DIR_NAME), DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * コンストラクタ
+	 *
+	 * @param dir
+	 *            キャッシュディレクトリ
+	 * @param maxBytes
+	 *            合計サイズの上限(バイト)
+	 */
+	public PcmCache(File dir, long maxBytes) {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * 変換できそうな音源か 拡張子がwavかで判断し、音源は開かない
+	 * リソースはアプリに入っているファイル名で判断する
+	 * 変換できない形式のWAVEもあるので、openに失敗した場合は他の方法で再生すること
+	 *
+	 * @param context
+	 * @param location
+	 *            "://"を含む場合はuri、それ以外はパス
+	 * @return
+	 */
+	public static boolean canConvert(Context context, String location) {
+		String name;
+		if (location.indexOf("://") < 0) {
+			name = location;
+		} else {
+			Uri uri = Uri.parse(location);
+			if ("file".equals(uri.getScheme())) {
+				name = uri.getPath();
+			} else if ("android.resource".equals(uri.getScheme())) {
+				name = getResourceFileName(context, uri);
+			} else {
+				// contentのuriは名前から形式が分からない
+				name = null;
+			}
+		}
+		return name != null
+				&& name.toLowerCase(Locale.ENGLISH).endsWith(WAVE_EXTENSION);
+	}
+
+	/**
+	 * リソースのuriが指す、アプリに入っているファイル名
+	 *
+	 * @param context
+	 * @param uri
+	 *            android.resource://パッケージ名/リソースID の形のuri
+	 * @return 分からない場合はnull
+	 */
+	private static String getResourceFileName(Context context, Uri uri) {
+		if (!context.getPackageName().equals(uri.getAuthority())) {
+			return null;
+		}
+		try {
+			TypedValue value = new TypedValue();
+			context.getResources().getValue(
+					Integer.parseInt(uri.getLastPathSegment()), value, true);
+			return value.string != null ? value.string.toString() : null;
+		} catch (NumberFormatException e) {
+			// 種類と名前で指定されたuriは扱わない
+			return null;
+		} catch (Resources.NotFoundException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * pathの音源のPCMを取得する キャッシュに無い場合は変換して保存する
+	 *
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	public Entry open(String path) throws IOException {
+		File file = new File(path);
+		InputStream in = new FileInputStream(file);
+		try {
+			return open(in, file.length(), file.getAbsolutePath() + "@"
+					+ file.lastModified());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * uriの音源のPCMを取得する キャッシュに無い場合は変換して保存する
+	 * 圧縮されたリソースのようにファイル記述子を得られない音源も扱える
+	 *
+	 * @param context
+	 * @param uri
+	 * @return
+	 * @throws IOException
+	 */
+	public Entry open(Context context, Uri uri) throws IOException {
+		if ("file".equals(uri.getScheme())) {
+			return open(uri.getPath());
+		}
+		long length = -1;
+		try {
+			AssetFileDescriptor afd = context.getContentResolver()
+					.openAssetFileDescriptor(uri, "r");
+			if (afd != null) {
+				length = afd.getLength();
+				afd.close();
+			}
+		} catch (FileNotFoundException e) {
+			// 圧縮されている場合は長さが分からないので先頭の内容だけで指紋を作る
+		}
+		InputStream in = context.getContentResolver().openInputStream(uri);
+		if (in == null) {
+			throw new FileNotFoundException(uri.toString());
+		}
+		try {
+			return open(in, length, uri + "@" + getSourceVersion(context, uri));
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * uriの音源の更新を表す値
+	 * リソースはアプリを更新した時にしか変わらないので、パッケージの更新時刻を使う
+	 *
+	 * @param context
+	 * @param uri
+	 * @return 分からない場合は0
+	 */
+	private static long getSourceVersion(Context context, Uri uri) {
+		if (!"android.resource".equals(uri.getScheme())) {
+			return 0;
+		}
+		try {
+			return context.getPackageManager().getPackageInfo(
+					uri.getAuthority(), 0).lastUpdateTime;
+		} catch (PackageManager.NameNotFoundException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * ストリームの先頭から指紋を求め、キャッシュを探す
+	 * 無い場合は読んだ先頭とストリームの続きを変換する
+	 *
+	 * @param in
+	 * @param length
+	 *            音源の長さ 不明な場合は-1
+	 * @param origin
+	 *            音源の場所と更新時刻を表す文字列
+	 * @return
+	 * @throws IOException
+	 */
+	private Entry open(InputStream in, long length, String origin)
+			throws IOException {
+		byte[] head = new byte[FINGERPRINT_BYTES];
+		int headLength = readFully(in, head, 0, head.length);
+		String key = makeKey(head, headLength, length, origin);
+
+		Entry entry = openCached(key);
+		if (entry != null) {
+			return entry;
+		}
+		InputStream source = new SequenceInputStream(new ByteArrayInputStream(
+				head, 0, headLength), in);
+		store(key, source);
+		trim();
+		entry = openCached(key);
+		if (entry == null) {
+			throw new IOException("failed to cache PCM");
+		}
+		return entry;
+	}
+
+	/**
+	 * キーを作る 音源の場所と更新時刻の指紋、内容の指紋と長さ、変換形式のバージョンから成る
+	 * 長さが分からない音源でも、先頭が同じだけの別の音源と重ならないように場所を含める
+	 *
+	 * @param head
+	 *            音源の先頭
+	 * @param headLength
+	 * @param length
+	 * @param origin
+	 *            音源の場所と更新時刻を表す文字列
+	 * @return
+	 * @throws IOException
+	 */
+	private static String makeKey(byte[] head, int headLength, long length,
+			String origin) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(origin.getBytes("UTF-8"));
+		String originHash = Long.toHexString(crc.getValue());
+		crc.reset();
+		crc.update(head, 0, headLength);
+		return originHash + "-" + Long.toHexString(crc.getValue()) + "-"
+				+ Long.toHexString(length) + "-s16le-v" + FORMAT_VERSION;
+	}
+
+	/**
+	 * キャッシュファイルを開いてマップする 壊れている場合は消す
+	 *
+	 * @param key
+	 * @return 無い場合はnull
+	 * @throws IOException
+	 */
+	private Entry openCached(String key) throws IOException {
+		File file = new File(dir, key + SUFFIX);
+		if (!file.exists()) {
+			return null;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			if (size >= HEADER_BYTES && size <= Integer.MAX_VALUE) {
+				MappedByteBuffer map = channel.map(
+						FileChannel.MapMode.READ_ONLY, 0, size);
+				map.order(ByteOrder.LITTLE_ENDIAN);
+				int channels = map.getShort(6);
+				int sampleRate = map.getInt(8);
+				long frames = map.getInt(12) & 0xffffffffL;
+				long dataBytes = frames * channels * 2;
+				if (map.getInt(0) == MAGIC && map.getShort(4) == FORMAT_VERSION
+						&& (channels == 1 || channels == 2) && sampleRate > 0
+						&& HEADER_BYTES + dataBytes <= size) {
+					// 最後に使った時刻を更新して消される順番を後ろにする
+					file.setLastModified(System.currentTimeMillis());
+					map.position(HEADER_BYTES);
+					map.limit((int) (HEADER_BYTES + dataBytes));
+					return new Entry(map.slice(), sampleRate, channels);
+				}
+			}
+		} finally {
+			raf.close();
+		}
+		file.delete();
+		return null;
+	}
+
+	/**
+	 * WAVEを16bitのPCMに変換して保存する
+	 * 書き込み途中で失敗しても壊れたファイルが残らないように、一時ファイルに書いてから名前を変える
+	 * 一時ファイルは呼び出しごとに別の名前にし、同じ音源を同時に変換しても互いに壊さない
+	 *
+	 * @param key
+	 * @param in
+	 * @throws IOException
+	 */
+	private void store(String key, InputStream in) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("cannot create " + dir);
+		}
+		File temp = File.createTempFile(key, TEMP_SUFFIX, dir);
+		boolean success = false;
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(
+					temp));
+			WaveFormat format;
+			try {
+				// ヘッダの場所を空けておく
+				out.write(new byte[HEADER_BYTES]);
+				format = convertWave(in, out);
+			} finally {
+				out.close();
+			}
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(
+					ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC);
+			header.putShort((short) FORMAT_VERSION);
+			header.putShort((short) format.outChannels);
+			header.putInt(format.sampleRate);
+			header.putInt((int) format.frames);
+			RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+			try {
+				raf.write(header.array());
+			} finally {
+				raf.close();
+			}
+			success = temp.renameTo(new File(dir, key + SUFFIX));
+			if (!success) {
+				throw new IOException("cannot rename " + temp);
+			}
+		} finally {
+			if (!success) {
+				temp.delete();
+			}
+		}
+	}
+
+	/**
+	 * 合計サイズが上限に収まるまで、最後に使った時刻が古いものから消す
+	 * 一番新しいものは上限を超えていても残す
+	 * 書き込み途中のファイルは、他のスレッドが書いている可能性があるので古いものだけを消す
+	 */
+	public void trim() {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		long expired = System.currentTimeMillis() - TEMP_EXPIRE_MILLIS;
+		long total = 0;
+		int count = 0;
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			if (name.endsWith(SUFFIX)) {
+				total += files[i].length();
+				files[count++] = files[i];
+			} else if (name.endsWith(TEMP_SUFFIX)
+					&& files[i].lastModified() < expired) {
+				// 書き込み途中で終わったもの
+				files[i].delete();
+			}
+		}
+		if (total <= maxBytes) {
+			return;
+		}
+		Arrays.sort(files, 0, count, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long ta = a.lastModified();
+				long tb = b.lastModified();
+				return ta < tb ? -1 : (ta == tb ? 0 : 1);
+			}
+		});
+		for (int i = 0; i < count - 1 && total > maxBytes; i++) {
+			long length = files[i].length();
+			if (files[i].delete()) {
+				total -= length;
+			}
+		}
+	}
+
+	/**
+	 * キャッシュをすべて消す
+	 */
+	public void clear() {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (int i = 0; i < files.length; i++) {
+			files[i].delete();
+		}
+	}
+
+	/**
+	 * WAVEのヘッダを読み、dataチャンクを16bitのPCMに変換して書き出す
+	 * 8/16/24/32bitの整数と32bitの浮動小数点に対応し、3チャンネル以上は先頭の2チャンネルを使う
+	 *
+	 * @param in
+	 * @param out
+	 * @return 読み取った形式と書き出したフレーム数
+	 * @throws IOException
+	 */
+	private static WaveFormat convertWave(InputStream in, OutputStream out)
+			throws IOException {
+		byte[] word = new byte[4];
+		if (readIntLE(in, word) != CHUNK_RIFF) {
+			throw new IOException("not a WAVE file");
+		}
+		readIntLE(in, word);
+		if (readIntLE(in, word) != CHUNK_WAVE) {
+			throw new IOException("not a WAVE file");
+		}
+		WaveFormat format = null;
+		while (true) {
+			int id = readIntLE(in, word);
+			long size = readIntLE(in, word) & 0xffffffffL;
+			if (id == CHUNK_FMT) {
+				byte[] fmt = new byte[(int) Math.min(size, 64)];
+				if (fmt.length < 16) {
+					throw new IOException("broken fmt chunk");
+				}
+				readExactly(in, fmt);
+				skipFully(in, size - fmt.length + (size & 1));
+				format = new WaveFormat(fmt);
+			} else if (id == CHUNK_DATA) {
+				if (format == null) {
+					throw new IOException("fmt chunk not found");
+				}
+				convertSamples(in, out, format, size);
+				return format;
+			} else {
+				skipFully(in, size + (size & 1));
+			}
+		}
+	}
+
+	/**
+	 * サンプルを16bitに変換して書き出す
+	 * 処理の区切りごとにスレッドの割り込みを調べ、割り込まれていれば変換を止める
+	 *
+	 * @param in
+	 * @param out
+	 * @param format
+	 * @param size
+	 *            dataチャンクの長さ 途中で音源が終わった場合はそこまで変換する
+	 * @throws IOException
+	 *             割り込まれた場合はInterruptedIOException
+	 */
+	private static void convertSamples(InputStream in, OutputStream out,
+			WaveFormat format, long size) throws IOException {
+		int inFrameBytes = format.channels * format.bytesPerSample;
+		int outFrameBytes = format.outChannels * 2;
+		byte[] src = new byte[CONVERT_FRAMES * inFrameBytes];
+		byte[] dst = new byte[CONVERT_FRAMES * outFrameBytes];
+		long remaining = size / inFrameBytes;
+		while (remaining > 0) {
+			if (Thread.interrupted()) {
+				throw new InterruptedIOException("conversion cancelled");
+			}
+			int requested = (int) Math.min(CONVERT_FRAMES, remaining);
+			int read = readFully(in, src, 0, requested * inFrameBytes);
+			int frames = read / inFrameBytes;
+			for (int f = 0; f < frames; f++) {
+				for (int c = 0; c < format.outChannels; c++) {
+					int sample = format.readSample(src, f * inFrameBytes + c
+							* format.bytesPerSample);
+					int o = f * outFrameBytes + c * 2;
+					dst[o] = (byte) sample;
+					dst[o + 1] = (byte) (sample >> 8);
+				}
+			}
+			out.write(dst, 0, frames * outFrameBytes);
+			format.frames += frames;
+			remaining -= frames;
+			if (frames < requested) {
+				// 音源が途中で終わっている
+				break;
+			}
+		}
+	}
+
+	private static int readIntLE(InputStream in, byte[] word)
+			throws IOException {
+		readExactly(in, word);
+		return (word[0] & 0xff) | (word[1] & 0xff) << 8
+				| (word[2] & 0xff) << 16 | word[3] << 24;
+	}
+
+	private static void readExactly(InputStream in, byte[] buf)
+			throws IOException {
+		if (readFully(in, buf, 0, buf.length) < buf.length) {
+			throw new EOFException();
+		}
+	}
+
+	/**
+	 * 終わりに達するか指定の長さになるまで読む
+	 *
+	 * @return 読んだバイト数
+	 */
+	private static int readFully(InputStream in, byte[] buf, int offset,
+			int length) throws IOException {
+		int total = 0;
+		while (total < length) {
+			int n = in.read(buf, offset + total, length - total);
+			if (n < 0) {
+				break;
+			}
+			total += n;
+		}
+		return total;
+	}
+
+	private static void skipFully(InputStream in, long n) throws IOException {
+		while (n > 0) {
+			long skipped = in.skip(n);
+			if (skipped <= 0) {
+				if (in.read() < 0) {
+					throw new EOFException();
+				}
+				skipped = 1;
+			}
+			n -= skipped;
+		}
+	}
+
+	/**
+	 * キャッシュから取り出したPCM
+	 *
+	 * @author maro
+	 *
+	 */
+	public static class Entry {
+		/**
+		 * 16bitリトルエンディアンのPCMデータ
+		 */
+		private final ByteBuffer data;
+		private final int sampleRate;
+		private final int channels;
+
+		Entry(ByteBuffer data, int sampleRate, int channels) {
+			this.data = data;
+			this.sampleRate = sampleRate;
+			this.channels = channels;
+		}
+
+		// getter=======================================================
+		public ByteBuffer getData() {
+			return data;
+		}
+
+		public int getSampleRate() {
+			return sampleRate;
+		}
+
+		public int getChannels() {
+			return channels;
+		}
+	}
+
+	/**
+	 * WAVEのfmtチャンクから読み取った形式
+	 *
+	 * @author maro
+	 *
+	 */
+	private static class WaveFormat {
+		final int formatTag;
+		final int channels;
+		final int sampleRate;
+		final int bytesPerSample;
+		final int outChannels;
+		long frames;
+
+		WaveFormat(byte[] fmt) throws IOException {
+			ByteBuffer b = ByteBuffer.wrap(fmt).order(ByteOrder.LITTLE_ENDIAN);
+			int tag = b.getShort(0) & 0xffff;
+			channels = b.getShort(2);
+			sampleRate = b.getInt(4);
+			int bits = b.getShort(14);
+			if (tag == WAVE_FORMAT_EXTENSIBLE && fmt.length >= 26) {
+				// サブフォーマットGUIDの先頭2バイトが実際の形式
+				tag = b.getShort(24) & 0xffff;
+			}
+			formatTag = tag;
+			bytesPerSample = (bits + 7) / 8;
+			if (channels < 1 || sampleRate <= 0) {
+				throw new IOException("broken fmt chunk");
+			}
+			boolean supported;
+			if (formatTag == WAVE_FORMAT_PCM) {
+				supported = bytesPerSample >= 1 && bytesPerSample <= 4;
+			} else {
+				supported = formatTag == WAVE_FORMAT_IEEE_FLOAT
+						&& bytesPerSample == 4;
+			}
+			if (!supported) {
+				throw new IOException("unsupported WAVE format: " + formatTag
+						+ "/" + bits + "bit");
+			}
+			outChannels = Math.min(channels, 2);
+		}
+
+		/**
+		 * 1サンプルを読んで16bitの値にする
+		 *
+		 * @param src
+		 * @param i
+		 *            サンプルの先頭位置
+		 * @return
+		 */
+		int readSample(byte[] src, int i) {
+			switch (bytesPerSample) {
+			case 1:
+				// 8bitは符号なし
+				return ((src[i] & 0xff) - 128) << 8;
+			case 2:
+				return (short) ((src[i] & 0xff) | src[i + 1] << 8);
+			case 3:
+				return (short) ((src[i + 1] & 0xff) | src[i + 2] << 8);
+			default:
+				if (formatTag == WAVE_FORMAT_IEEE_FLOAT) {
+					int bits = (src[i] & 0xff) | (src[i + 1] & 0xff) << 8
+							| (src[i + 2] & 0xff) << 16 | src[i + 3] << 24;
+					float v = Float.intBitsToFloat(bits) * 32767f;
+					if (v > 32767f) {
+						return 32767;
+					}
+					if (v < -32768f) {
+						return -32768;
+					}
+					return (int) v;
+				}
+				return (short) ((src[i + 2] & 0xff) | src[i + 3] << 8);
+			}
+		}
+	}
+}
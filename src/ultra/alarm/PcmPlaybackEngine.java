@@ -0,0 +1,946 @@
+package ultra.alarm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * AudioTrackにPCMを直接書き込む再生エンジン
+ * 再生位置はAudioTrackが鳴らしたフレーム数から求めるため、サンプル単位で正確になる
+ * ループ区間の折り返しもサンプル単位で行う
+ *
+ * 音源はリニアPCMのWAVEファイルに限る
+ * このアプリが対象とするAPIレベルでは圧縮音源をPCMに変換する手段が無いため
+ * PcmCacheで16bitのPCMに変換し、変換結果をキャッシュから読む
+ *
+ * @author maro
+ *
+ */
+public class PcmPlaybackEngine implements PlaybackEngine {
+	/**
+	 * 1回に書き込むフレーム数
+	 */
+	private static final int CHUNK_FRAMES = 256;
+	/**
+	 * 再生開始時に音量を上げていくフレーム数の時間(ミリ秒)
+	 */
+	private static final int FADE_IN_MILLIS = 5;
+	/**
+	 * 一時停止時に音量を下げる時間(ミリ秒)
+	 */
+	private static final int FADE_OUT_MILLIS = 5;
+	/**
+	 * 書き込み位置と音源の位置の対応を覚えておく数 2のべき乗
+	 */
+	private static final int SEGMENT_CAPACITY = 32;
+	/**
+	 * 折り返し位置を覚えておく数 溢れた分は最後の記録にまとめる
+	 */
+	private static final int WRAP_CAPACITY = 8;
+
+	/**
+	 * 音源の読み込み用のスレッド すべてのエンジンで1つを使う
+	 */
+	private static final ThreadPoolExecutor loader = new ThreadPoolExecutor(1,
+			1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					return new Thread("PcmPlaybackEngine-prepare") {
+						@Override
+						public void run() {
+							Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+							r.run();
+						}
+					};
+				}
+			});
+
+	static {
+		loader.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * 状態を守るためのロック
+	 */
+	private final Object lock = new Object();
+	/**
+	 * リスナーを呼ぶためのメインスレッドのハンドラー
+	 */
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	/**
+	 * リスナー
+	 */
+	private Listener listener;
+	/**
+	 * 変換済みPCMのキャッシュ
+	 */
+	private final PcmCache cache;
+
+	// 音源==================================================================
+	/**
+	 * setDataSourceでセットされた音源の場所
+	 */
+	private String sourcePath;
+	private Context sourceContext;
+	private Uri sourceUri;
+	/**
+	 * resetとprepareAsyncのたびに増やす番号 準備中に取り消された音源の結果を捨てるために使う
+	 */
+	private int generation;
+	/**
+	 * 実行中の読み込み 取り消す時に割り込む lockで保護する
+	 */
+	private Future<?> loadTask;
+	/**
+	 * PCMデータ
+	 */
+	private ByteBuffer data;
+	/**
+	 * サンプリングレート
+	 */
+	private int sampleRate;
+	/**
+	 * チャンネル数
+	 */
+	private int channels;
+	/**
+	 * 1フレームのバイト数
+	 */
+	private int frameBytes;
+	/**
+	 * 全フレーム数
+	 */
+	private long totalFrames;
+
+	// 再生==================================================================
+	/**
+	 * 出力先 解放は書き込み用スレッドが終わる時に行う
+	 */
+	private AudioTrack track;
+	/**
+	 * 書き込み用スレッド
+	 */
+	private RenderThread renderThread;
+
+	// 状態 lockで保護する======================================================
+	private boolean prepared;
+	private boolean playing;
+	/**
+	 * 停止中の再生位置(フレーム)
+	 */
+	private long pausedFrame;
+	/**
+	 * 次に書き込む音源の位置(フレーム)
+	 */
+	private long writeFrame;
+	/**
+	 * 書き込みをやり直す必要があるか 再生開始・シークの時に立てる
+	 */
+	private boolean restartRequested;
+	/**
+	 * 音量を下げて一時停止する必要があるか
+	 */
+	private boolean pauseRequested;
+	/**
+	 * 次に書き込むデータの頭で音量を上げていくか
+	 */
+	private boolean fadeIn;
+	/**
+	 * 曲の最後で折り返すか
+	 */
+	private boolean looping = true;
+	/**
+	 * ループ区間(ミリ秒) 音源の読み込み前にセットされることがあるため、ミリ秒でも覚えておく
+	 */
+	private long loopStartMillis;
+	private long loopEndMillis;
+	/**
+	 * ループ区間の開始位置(フレーム)
+	 */
+	private long loopStartFrame;
+	/**
+	 * ループ区間の終了位置(フレーム) 0の場合は曲の最後
+	 */
+	private long loopEndFrame;
+	/**
+	 * flush以降に書き込んだフレーム数
+	 */
+	private long writtenFrames;
+	/**
+	 * 書き込み位置と音源の位置の対応
+	 */
+	private final long[] segmentWritten = new long[SEGMENT_CAPACITY];
+	private final long[] segmentSource = new long[SEGMENT_CAPACITY];
+	private long segmentCount;
+	/**
+	 * 折り返した書き込み位置と、その位置までに折り返した回数
+	 */
+	private final long[] wrapWritten = new long[WRAP_CAPACITY];
+	private final int[] wrapLoops = new int[WRAP_CAPACITY];
+	private int wrapHead;
+	private int wrapCount;
+	/**
+	 * 曲の最後まで書き込んだ位置 書き込んでいない場合は-1
+	 */
+	private long endWritten = -1;
+
+	/**
+	 * ループの通知 使い回すために一つだけ生成する
+	 */
+	private final Runnable loopNotifier = new Runnable() {
+		@Override
+		public void run() {
+			if (listener != null) {
+				listener.onLoop(PcmPlaybackEngine.this);
+			}
+		}
+	};
+	/**
+	 * 再生終了の通知
+	 */
+	private final Runnable completionNotifier = new Runnable() {
+		@Override
+		public void run() {
+			if (listener != null) {
+				listener.onCompletion(PcmPlaybackEngine.this);
+			}
+		}
+	};
+	/**
+	 * シーク完了の通知
+	 */
+	private final Runnable seekCompleteNotifier = new Runnable() {
+		@Override
+		public void run() {
+			if (listener != null) {
+				listener.onSeekComplete(PcmPlaybackEngine.this);
+			}
+		}
+	};
+
+	/**
+	 * コンストラクタ
+	 *
+	 * @param cache
+	 *            変換済みPCMのキャッシュ
+	 */
+	public PcmPlaybackEngine(PcmCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * 音源の場所を覚えておく 読み込みは再生準備の時に行う
+	 */
+	@Override
+	public void setDataSource(String path) throws IOException {
+		synchronized (lock) {
+			checkIdle();
+			sourcePath = path;
+		}
+	}
+
+	/**
+	 * 音源の場所を覚えておく 読み込みは再生準備の時に行う
+	 */
+	@Override
+	public void setDataSource(Context context, Uri uri) throws IOException {
+		synchronized (lock) {
+			checkIdle();
+			sourceContext = context.getApplicationContext();
+			sourceUri = uri;
+		}
+	}
+
+	/**
+	 * 音源をセットできる状態か調べる lockを持って呼ぶ
+	 */
+	private void checkIdle() {
+		if (prepared || sourcePath != null || sourceUri != null) {
+			throw new IllegalStateException("data source is already set");
+		}
+	}
+
+	/**
+	 * セットされた音源を読み込む 時間がかかるためlockを持たずに呼ぶ
+	 *
+	 * @return 読み込んだPCM
+	 * @throws IOException
+	 */
+	private PcmCache.Entry loadSource() throws IOException {
+		String path;
+		Context context;
+		Uri uri;
+		synchronized (lock) {
+			path = sourcePath;
+			context = sourceContext;
+			uri = sourceUri;
+		}
+		if (uri != null && "file".equals(uri.getScheme())) {
+			path = uri.getPath();
+			uri = null;
+		}
+		if (path == null && uri == null) {
+			throw new IOException("data source is not set");
+		}
+		return uri != null ? cache.open(context, uri) : cache.open(path);
+	}
+
+	@Override
+	public void prepare() throws IOException {
+		int current;
+		synchronized (lock) {
+			if (prepared) {
+				return;
+			}
+			current = generation;
+		}
+		PcmCache.Entry entry = loadSource();
+		synchronized (lock) {
+			if (current != generation) {
+				throw new IOException("data source was reset");
+			}
+			prepareTrack(entry);
+		}
+	}
+
+	/**
+	 * 音源の読み込み(キャッシュの変換を含む)を読み込み用のスレッドで行う
+	 * 前の読み込みが残っていれば割り込んで取り消す 変換は区切りごとに割り込みを調べて止まる
+	 * 完了するまでにresetされた場合は結果を捨てて通知しない
+	 */
+	@Override
+	public void prepareAsync() {
+		final int current;
+		synchronized (lock) {
+			cancelLoad();
+			current = ++generation;
+			loadTask = loader.submit(new Runnable() {
+				@Override
+				public void run() {
+					load(current);
+				}
+			});
+		}
+	}
+
+	/**
+	 * 読み込み用のスレッドで音源を読み込み、結果を通知する
+	 *
+	 * @param current
+	 *            読み込みを始めた時の番号
+	 */
+	private void load(final int current) {
+		synchronized (lock) {
+			if (current != generation) {
+				return;
+			}
+		}
+		String error = null;
+		try {
+			PcmCache.Entry entry = loadSource();
+			synchronized (lock) {
+				if (current != generation) {
+					return;
+				}
+				prepareTrack(entry);
+			}
+		} catch (IOException e) {
+			error = e.getMessage();
+		} catch (RuntimeException e) {
+			error = e.toString();
+		}
+		final String message = error;
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (lock) {
+					if (current != generation) {
+						return;
+					}
+				}
+				if (listener == null) {
+					return;
+				}
+				if (message == null) {
+					listener.onPrepared(PcmPlaybackEngine.this);
+				} else {
+					listener.onError(PcmPlaybackEngine.this, message);
+				}
+			}
+		});
+	}
+
+	/**
+	 * 実行中の読み込みに割り込んで取り消す lockを持って呼ぶ
+	 */
+	private void cancelLoad() {
+		if (loadTask != null) {
+			loadTask.cancel(true);
+			loadTask = null;
+		}
+	}
+
+	/**
+	 * 読み込んだPCMを出力するAudioTrackと書き込み用スレッドを用意する lockを持って呼ぶ
+	 *
+	 * @param entry
+	 * @throws IOException
+	 */
+	private void prepareTrack(PcmCache.Entry entry) throws IOException {
+		if (prepared) {
+			return;
+		}
+		int channels = entry.getChannels();
+		int sampleRate = entry.getSampleRate();
+		if (channels != 1 && channels != 2) {
+			throw new IOException("unsupported channels: " + channels);
+		}
+		if (sampleRate <= 0) {
+			throw new IOException("invalid sample rate: " + sampleRate);
+		}
+		this.sampleRate = sampleRate;
+		this.channels = channels;
+		this.frameBytes = channels * 2;
+		this.data = entry.getData();
+		this.totalFrames = data.remaining() / frameBytes;
+		updateLoopFrames();
+
+		int channelConfig = channels == 1 ? AudioFormat.CHANNEL_OUT_MONO
+				: AudioFormat.CHANNEL_OUT_STEREO;
+		int minBuffer = AudioTrack.getMinBufferSize(sampleRate,
+				channelConfig, AudioFormat.ENCODING_PCM_16BIT);
+		int bufferSize = Math.max(minBuffer, CHUNK_FRAMES * frameBytes * 2);
+		track = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate,
+				channelConfig, AudioFormat.ENCODING_PCM_16BIT, bufferSize,
+				AudioTrack.MODE_STREAM);
+		if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+			track.release();
+			track = null;
+			throw new IOException("AudioTrack initialization failed");
+		}
+		pausedFrame = 0;
+		prepared = true;
+		renderThread = new RenderThread(track, data.duplicate(),
+				new byte[CHUNK_FRAMES * frameBytes]);
+		renderThread.start();
+	}
+
+	@Override
+	public void start() {
+		synchronized (lock) {
+			if (!prepared || playing) {
+				return;
+			}
+			writeFrame = pausedFrame >= totalFrames ? 0 : pausedFrame;
+			playing = true;
+			pauseRequested = false;
+			restartRequested = true;
+			fadeIn = true;
+			lock.notifyAll();
+		}
+	}
+
+	@Override
+	public void pause() {
+		synchronized (lock) {
+			if (playing) {
+				requestPause(currentFrame());
+			}
+		}
+	}
+
+	/**
+	 * 指定した位置を停止位置にして、短く音量を下げてから一時停止する
+	 * 再生を再開するとこの位置から鳴り始める
+	 */
+	@Override
+	public void pauseAt(long positionMillis) {
+		synchronized (lock) {
+			if (playing) {
+				requestPause(clampFrame(millisToFrames(positionMillis)));
+			} else {
+				pausedFrame = clampFrame(millisToFrames(positionMillis));
+			}
+		}
+	}
+
+	@Override
+	public void stop() {
+		synchronized (lock) {
+			if (playing) {
+				requestPause(0);
+			} else {
+				pausedFrame = 0;
+			}
+		}
+	}
+
+	/**
+	 * 書き込み用スレッドを止め、音源をセットする前の状態に戻す
+	 * AudioTrackは書き込み用スレッドが抜ける時に解放するため、
+	 * 待ちきれずに戻った場合でも書き込み中のAudioTrackを解放することはない
+	 */
+	@Override
+	public void reset() {
+		RenderThread thread;
+		synchronized (lock) {
+			generation++;
+			cancelLoad();
+			playing = false;
+			pauseRequested = false;
+			restartRequested = false;
+			thread = renderThread;
+			renderThread = null;
+			if (thread != null) {
+				thread.quit = true;
+			}
+			lock.notifyAll();
+		}
+		if (thread != null) {
+			try {
+				thread.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (lock) {
+			track = null;
+			prepared = false;
+			data = null;
+			sampleRate = 0;
+			totalFrames = 0;
+			pausedFrame = 0;
+			sourcePath = null;
+			sourceContext = null;
+			sourceUri = null;
+		}
+		handler.removeCallbacks(loopNotifier);
+		handler.removeCallbacks(completionNotifier);
+		handler.removeCallbacks(seekCompleteNotifier);
+	}
+
+	@Override
+	public void release() {
+		reset();
+	}
+
+	@Override
+	public boolean isPlaying() {
+		synchronized (lock) {
+			return playing;
+		}
+	}
+
+	@Override
+	public void seekTo(int msec) {
+		synchronized (lock) {
+			long frame = clampFrame(millisToFrames(msec));
+			if (playing) {
+				writeFrame = frame;
+				restartRequested = true;
+				fadeIn = true;
+				lock.notifyAll();
+			} else {
+				pausedFrame = frame;
+			}
+		}
+		handler.post(seekCompleteNotifier);
+	}
+
+	@Override
+	public int getCurrentPosition() {
+		synchronized (lock) {
+			return (int) framesToMillis(currentFrame());
+		}
+	}
+
+	@Override
+	public int getDuration() {
+		synchronized (lock) {
+			return (int) framesToMillis(totalFrames);
+		}
+	}
+
+	@Override
+	public void setLooping(boolean looping) {
+		synchronized (lock) {
+			this.looping = looping;
+		}
+	}
+
+	/**
+	 * 区間の終わりまで書き込んだら、同じバッファの続きに開始位置から書き込む
+	 */
+	@Override
+	public boolean setLoopRegion(long startMillis, long endMillis) {
+		synchronized (lock) {
+			loopStartMillis = startMillis;
+			loopEndMillis = endMillis;
+			updateLoopFrames();
+		}
+		return true;
+	}
+
+	/**
+	 * ループ区間をフレームに直す lockを持って呼ぶ
+	 */
+	private void updateLoopFrames() {
+		loopStartFrame = clampFrame(millisToFrames(loopStartMillis));
+		loopEndFrame = loopEndMillis > 0 ? clampFrame(millisToFrames(
+				loopEndMillis)) : 0;
+	}
+
+	@Override
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * 一時停止の要求 lockを持って呼ぶ
+	 *
+	 * @param frame
+	 *            停止位置(フレーム)
+	 */
+	private void requestPause(long frame) {
+		pausedFrame = frame;
+		playing = false;
+		restartRequested = false;
+		pauseRequested = true;
+		lock.notifyAll();
+	}
+
+	/**
+	 * 現在の再生位置(フレーム) lockを持って呼ぶ
+	 *
+	 * @return
+	 */
+	private long currentFrame() {
+		if (!playing) {
+			return pausedFrame;
+		}
+		if (restartRequested) {
+			return writeFrame;
+		}
+		return sourceFrameAt(headPosition());
+	}
+
+	/**
+	 * AudioTrackが鳴らし終えたフレーム数 lockを持って呼ぶ
+	 *
+	 * @return
+	 */
+	private long headPosition() {
+		return track.getPlaybackHeadPosition() & 0xffffffffL;
+	}
+
+	/**
+	 * 書き込み位置を音源の位置に変換する lockを持って呼ぶ
+	 *
+	 * @param written
+	 *            flush以降の書き込み位置(フレーム)
+	 * @return 音源の位置(フレーム)
+	 */
+	private long sourceFrameAt(long written) {
+		if (segmentCount == 0) {
+			return writeFrame;
+		}
+		long oldest = Math.max(0, segmentCount - SEGMENT_CAPACITY);
+		for (long n = segmentCount - 1; n >= oldest; n--) {
+			int i = (int) (n & (SEGMENT_CAPACITY - 1));
+			if (segmentWritten[i] <= written || n == oldest) {
+				return Math.min(segmentSource[i] + (written - segmentWritten[i]),
+						totalFrames);
+			}
+		}
+		return writeFrame;
+	}
+
+	/**
+	 * 書き込み位置と音源の位置の対応を記録する 連続している場合は記録しない
+	 *
+	 * @param written
+	 * @param source
+	 */
+	private void addSegment(long written, long source) {
+		if (segmentCount > 0) {
+			int last = (int) ((segmentCount - 1) & (SEGMENT_CAPACITY - 1));
+			if (segmentSource[last] + (written - segmentWritten[last]) == source) {
+				return;
+			}
+		}
+		int i = (int) (segmentCount & (SEGMENT_CAPACITY - 1));
+		segmentWritten[i] = written;
+		segmentSource[i] = source;
+		segmentCount++;
+	}
+
+	/**
+	 * AudioTrackに溜まっているデータを捨てて、書き込み位置の記録を初期化する
+	 * 書き込み用スレッドからlockを持って呼ぶ
+	 *
+	 * @param audio
+	 *            書き込み用スレッドのAudioTrack
+	 */
+	private void flushTrack(AudioTrack audio) {
+		audio.pause();
+		audio.flush();
+		writtenFrames = 0;
+		segmentCount = 0;
+		wrapCount = 0;
+		endWritten = -1;
+	}
+
+	/**
+	 * 次に書き込むデータをバッファに用意する 書き込み用スレッドからlockを持って呼ぶ
+	 *
+	 * @param reader
+	 * @param chunk
+	 *            書き込み用バッファ
+	 * @return 用意したバイト数 曲の最後まで書き込み済みの場合は0
+	 */
+	private int fillChunk(ByteBuffer reader, byte[] chunk) {
+		long end = totalFrames;
+		if (loopEndFrame > 0 && loopEndFrame < totalFrames) {
+			end = loopEndFrame;
+		}
+		if (writeFrame >= end) {
+			if (!looping) {
+				if (endWritten < 0) {
+					endWritten = writtenFrames;
+				}
+				return 0;
+			}
+			// ループ区間の開始位置に折り返す 鳴った時に通知するため位置を覚えておく
+			// 記録が一杯の場合は最後の記録を延ばし、通知を遅らせても数は失わない
+			if (wrapCount < WRAP_CAPACITY) {
+				int i = (wrapHead + wrapCount) % WRAP_CAPACITY;
+				wrapWritten[i] = writtenFrames;
+				wrapLoops[i] = 1;
+				wrapCount++;
+			} else {
+				int i = (wrapHead + wrapCount - 1) % WRAP_CAPACITY;
+				wrapWritten[i] = writtenFrames;
+				wrapLoops[i]++;
+			}
+			writeFrame = loopStartFrame < end ? loopStartFrame : 0;
+		}
+		int frames = (int) Math.min(CHUNK_FRAMES, end - writeFrame);
+		addSegment(writtenFrames, writeFrame);
+		reader.limit(reader.capacity());
+		reader.position((int) (writeFrame * frameBytes));
+		reader.get(chunk, 0, frames * frameBytes);
+		if (fadeIn) {
+			applyFadeIn(chunk, frames);
+			fadeIn = false;
+		}
+		writeFrame += frames;
+		writtenFrames += frames;
+		return frames * frameBytes;
+	}
+
+	/**
+	 * バッファの頭で音量を0から上げていく 再生開始時のプチノイズを防ぐ
+	 *
+	 * @param chunk
+	 * @param frames
+	 *            バッファ中のフレーム数
+	 */
+	private void applyFadeIn(byte[] chunk, int frames) {
+		int fadeFrames = (int) Math.min(frames, millisToFrames(FADE_IN_MILLIS));
+		for (int f = 0; f < fadeFrames; f++) {
+			for (int c = 0; c < channels; c++) {
+				int i = f * frameBytes + c * 2;
+				int sample = (short) ((chunk[i] & 0xff) | (chunk[i + 1] << 8));
+				sample = sample * f / fadeFrames;
+				chunk[i] = (byte) sample;
+				chunk[i + 1] = (byte) (sample >> 8);
+			}
+		}
+	}
+
+	/**
+	 * 鳴り終えた位置を調べて、折り返しと再生終了を通知する
+	 * 書き込み用スレッドから呼ぶ
+	 *
+	 * @param thread
+	 *            呼び出した書き込み用スレッド
+	 */
+	private void checkPlayedBoundaries(RenderThread thread) {
+		synchronized (lock) {
+			if (thread.quit || !playing || restartRequested) {
+				return;
+			}
+			long head = thread.audio.getPlaybackHeadPosition() & 0xffffffffL;
+			while (wrapCount > 0 && head >= wrapWritten[wrapHead]) {
+				for (int i = 0; i < wrapLoops[wrapHead]; i++) {
+					handler.post(loopNotifier);
+				}
+				wrapHead = (wrapHead + 1) % WRAP_CAPACITY;
+				wrapCount--;
+			}
+			if (endWritten >= 0 && head >= endWritten) {
+				playing = false;
+				pausedFrame = totalFrames;
+				flushTrack(thread.audio);
+				handler.post(completionNotifier);
+			}
+		}
+	}
+
+	/**
+	 * 音量を短く下げてから一時停止する 書き込み用スレッドから呼ぶ
+	 *
+	 * @param thread
+	 *            呼び出した書き込み用スレッド
+	 */
+	private void fadeOutAndPause(RenderThread thread) {
+		AudioTrack audio = thread.audio;
+		final int steps = FADE_OUT_MILLIS;
+		for (int i = 1; i <= steps; i++) {
+			float volume = 1.0f - (float) i / steps;
+			audio.setStereoVolume(volume, volume);
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		synchronized (lock) {
+			// 音量を下げている間に再開された場合は止めない
+			if (!thread.quit && !playing) {
+				flushTrack(audio);
+			}
+		}
+		audio.setStereoVolume(1.0f, 1.0f);
+	}
+
+	private long millisToFrames(long millis) {
+		return millis * sampleRate / 1000;
+	}
+
+	private long framesToMillis(long frames) {
+		if (sampleRate == 0) {
+			return 0;
+		}
+		return frames * 1000 / sampleRate;
+	}
+
+	private long clampFrame(long frame) {
+		if (frame < 0) {
+			return 0;
+		}
+		if (frame > totalFrames) {
+			return totalFrames;
+		}
+		return frame;
+	}
+
+	/**
+	 * AudioTrackにPCMを書き込み続けるスレッド
+	 * ループ中はオブジェクトを生成しない
+	 * 終わる時に自分のAudioTrackを解放する
+	 * resetの後に次の音源が用意されても、このスレッドは自分のAudioTrackとバッファしか触らない
+	 *
+	 * @author maro
+	 *
+	 */
+	private class RenderThread extends Thread {
+		/**
+		 * このスレッドが書き込むAudioTrack
+		 */
+		final AudioTrack audio;
+		/**
+		 * このスレッド専用の読み出し位置を持つPCMデータ
+		 */
+		private final ByteBuffer reader;
+		/**
+		 * 書き込み用バッファ
+		 */
+		private final byte[] chunk;
+		/**
+		 * スレッドを終わらせるか lockで保護する
+		 */
+		boolean quit;
+
+		RenderThread(AudioTrack audio, ByteBuffer reader, byte[] chunk) {
+			super("PcmPlaybackEngine");
+			this.audio = audio;
+			this.reader = reader;
+			this.chunk = chunk;
+		}
+
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+			try {
+				render();
+			} finally {
+				audio.release();
+			}
+		}
+
+		/**
+		 * quitが立つまで書き込みを続ける
+		 */
+		private void render() {
+			while (true) {
+				int bytes = 0;
+				boolean pause = false;
+				synchronized (lock) {
+					while (!quit && !playing && !pauseRequested) {
+						try {
+							lock.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					if (quit) {
+						audio.pause();
+						audio.flush();
+						return;
+					}
+					if (pauseRequested) {
+						pauseRequested = false;
+						pause = true;
+					} else {
+						if (restartRequested) {
+							restartRequested = false;
+							flushTrack(audio);
+							audio.play();
+						}
+						bytes = fillChunk(reader, chunk);
+					}
+				}
+				if (pause) {
+					fadeOutAndPause(this);
+					continue;
+				}
+				if (bytes > 0) {
+					audio.write(chunk, 0, bytes);
+				} else {
+					// 曲の最後まで書き込んだので鳴り終わるのを待つ
+					try {
+						Thread.sleep(2);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				checkPlayedBoundaries(this);
+			}
+		}
+	}
+}
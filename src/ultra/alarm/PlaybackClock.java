@@ -0,0 +1,227 @@
+package ultra.alarm;
+
+import android.os.SystemClock;
+
+/**
+ * 再生位置を補間する時計クラス
+ * 再生開始・シーク・停止の時点を基準にして、経過時間から現在の再生位置を求める
+ * プレイヤーへの問い合わせは一定間隔の再同期の時だけ行う
+ *
+ * 時刻にはSystem.nanoTime()を使う
+ * Androidではこの値はSystemClock.uptimeMillis()と同じ単調時計を元にしている
+ *
+ * @author maro
+ *
+ */
+public class PlaybackClock {
+	/**
+	 * ミリ秒をナノ秒に変換する係数
+	 */
+	public static final long NANOS_PER_MILLI = 1000000L;
+
+	/**
+	 * 再同期を行う間隔(ナノ秒)
+	 */
+	private static final long RESYNC_INTERVAL_NANOS = 1000 * NANOS_PER_MILLI;
+
+	/**
+	 * 再同期の時にずれとして扱う閾値(ナノ秒) これ以下のずれはプレイヤー側の揺らぎとして無視する
+	 */
+	private static final long RESYNC_TOLERANCE_NANOS = 30 * NANOS_PER_MILLI;
+
+	/**
+	 * 基準時点の再生位置(ナノ秒)
+	 */
+	private long anchorPosition;
+	/**
+	 * 基準時点の時刻(ナノ秒)
+	 */
+	private long anchorTime;
+	/**
+	 * 最後に再同期を行った時刻(ナノ秒)
+	 */
+	private long lastSyncTime;
+	/**
+	 * 再生中かどうか
+	 */
+	private boolean running;
+	/**
+	 * 曲の長さ(ナノ秒) 0以下の場合は不明
+	 */
+	private long duration;
+
+	/**
+	 * 現在の時刻(ナノ秒)
+	 *
+	 * @return
+	 */
+	public static long now() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * SystemClock.uptimeMillis()基準の時刻をこの時計の時刻に変換する
+	 * 入力イベントの時刻から再生位置を求める時に使う
+	 *
+	 * @param uptimeMillis
+	 *            SystemClock.uptimeMillis()基準の時刻(ミリ秒)
+	 * @return System.nanoTime()基準の時刻(ナノ秒)
+	 */
+	public static long fromUptimeMillis(long uptimeMillis) {
+		long elapsed = SystemClock.uptimeMillis() - uptimeMillis;
+		return now() - elapsed * NANOS_PER_MILLI;
+	}
+
+	/**
+	 * 再生開始を基準にする
+	 *
+	 * @param positionMillis
+	 *            再生開始位置(ミリ秒)
+	 */
+	public void start(long positionMillis) {
+		anchor(positionMillis * NANOS_PER_MILLI, now());
+		running = true;
+	}
+
+	/**
+	 * 停止を基準にする
+	 *
+	 * @param positionMillis
+	 *            停止位置(ミリ秒)
+	 */
+	public void pause(long positionMillis) {
+		pauseAt(positionMillis * NANOS_PER_MILLI);
+	}
+
+	/**
+	 * 停止を基準にする
+	 *
+	 * @param positionNanos
+	 *            停止位置(ナノ秒)
+	 */
+	public void pauseAt(long positionNanos) {
+		anchor(positionNanos, now());
+		running = false;
+	}
+
+	/**
+	 * シークを基準にする 再生状態は変えない
+	 *
+	 * @param positionMillis
+	 *            シーク先(ミリ秒)
+	 */
+	public void seek(long positionMillis) {
+		anchor(positionMillis * NANOS_PER_MILLI, now());
+	}
+
+	/**
+	 * 一定間隔ごとに実際の再生位置と比べる必要があるかどうか
+	 *
+	 * @return 再同期が必要な場合true
+	 */
+	public boolean needsResync() {
+		return running && now() - lastSyncTime >= RESYNC_INTERVAL_NANOS;
+	}
+
+	/**
+	 * 実際の再生位置と比べて、ずれが大きい場合は基準を合わせ直す
+	 *
+	 * @param positionMillis
+	 *            プレイヤーから取得した再生位置(ミリ秒)
+	 * @return 基準を合わせ直した場合true
+	 */
+	public boolean resync(long positionMillis) {
+		long time = now();
+		long actual = positionMillis * NANOS_PER_MILLI;
+		long diff = actual - getPositionAt(time);
+		if (diff > RESYNC_TOLERANCE_NANOS || diff < -RESYNC_TOLERANCE_NANOS) {
+			anchor(actual, time);
+			return true;
+		}
+		lastSyncTime = time;
+		return false;
+	}
+
+	/**
+	 * 現在の再生位置(ナノ秒)
+	 *
+	 * @return
+	 */
+	public long getPosition() {
+		return getPositionAt(now());
+	}
+
+	/**
+	 * 指定した時刻での再生位置(ナノ秒)
+	 * 最後の基準時点以降、再生が続いているものとして求める
+	 *
+	 * @param timeNanos
+	 *            System.nanoTime()と同じ基準の時刻
+	 * @return
+	 */
+	public long getPositionAt(long timeNanos) {
+		long position = getUnclampedPositionAt(timeNanos);
+		if (position < 0) {
+			position = 0;
+		}
+		if (duration > 0 && position > duration) {
+			position = duration;
+		}
+		return position;
+	}
+
+	/**
+	 * 指定した時刻での再生位置(ナノ秒) 曲の長さで切り詰めない
+	 * 曲の終わりでループした直後に、境界をどれだけ過ぎたかを求める時に使う
+	 *
+	 * @param timeNanos
+	 *            System.nanoTime()と同じ基準の時刻
+	 * @return
+	 */
+	public long getUnclampedPositionAt(long timeNanos) {
+		if (!running) {
+			return anchorPosition;
+		}
+		return anchorPosition + (timeNanos - anchorTime);
+	}
+
+	/**
+	 * 再生中かどうか
+	 *
+	 * @return
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * 曲の長さを設定する
+	 *
+	 * @param durationMillis
+	 *            曲の長さ(ミリ秒)
+	 */
+	public void setDuration(long durationMillis) {
+		this.duration = durationMillis * NANOS_PER_MILLI;
+	}
+
+	/**
+	 * 曲の長さ(ナノ秒)
+	 *
+	 * @return
+	 */
+	public long getDuration() {
+		return duration;
+	}
+
+	/**
+	 * 基準時点を設定する
+	 *
+	 * @param positionNanos
+	 * @param timeNanos
+	 */
+	private void anchor(long positionNanos, long timeNanos) {
+		anchorPosition = positionNanos;
+		anchorTime = timeNanos;
+		lastSyncTime = timeNanos;
+	}
+}
@@ -0,0 +1,180 @@
+package ultra.alarm;
+
+import java.io.IOException;
+
+import android.content.Context;
+import android.net.Uri;
+
+/**
+ * UltraPlayerが音を鳴らすために使う再生エンジンのインターフェース
+ * 位置・長さはすべてミリ秒で扱う
+ *
+ * @author maro
+ *
+ */
+public interface PlaybackEngine {
+	/**
+	 * pathの音源をセットする
+	 *
+	 * @param path
+	 * @throws IOException
+	 */
+	public void setDataSource(String path) throws IOException;
+
+	/**
+	 * uriの音源をセットする
+	 *
+	 * @param context
+	 * @param uri
+	 * @throws IOException
+	 */
+	public void setDataSource(Context context, Uri uri) throws IOException;
+
+	/**
+	 * 再生準備 呼び出し元のスレッドで完了まで待つ
+	 *
+	 * @throws IOException
+	 */
+	public void prepare() throws IOException;
+
+	/**
+	 * 再生準備をバックグラウンドで行う
+	 * 完了はListener.onPrepared、失敗はListener.onErrorで通知する
+	 */
+	public void prepareAsync();
+
+	/**
+	 * 音源をセットする前の状態に戻す
+	 * 準備中の場合は準備を取り消し、その音源の通知は行わない
+	 */
+	public void reset();
+
+	/**
+	 * 再生開始
+	 */
+	public void start();
+
+	/**
+	 * 一時停止
+	 */
+	public void pause();
+
+	/**
+	 * 指定した再生位置で止まったものとして一時停止する
+	 * 位置を合わせられないエンジンは通常の一時停止を行う
+	 *
+	 * @param positionMillis
+	 *            停止位置(ミリ秒)
+	 */
+	public void pauseAt(long positionMillis);
+
+	/**
+	 * 再生停止
+	 */
+	public void stop();
+
+	/**
+	 * リソースの解放
+	 */
+	public void release();
+
+	/**
+	 * 再生中かどうか
+	 *
+	 * @return
+	 */
+	public boolean isPlaying();
+
+	/**
+	 * シークさせる 完了はListener.onSeekCompleteで通知する
+	 *
+	 * @param msec
+	 */
+	public void seekTo(int msec);
+
+	/**
+	 * 現在の再生位置(ミリ秒)
+	 *
+	 * @return
+	 */
+	public int getCurrentPosition();
+
+	/**
+	 * 曲の長さ(ミリ秒)
+	 *
+	 * @return
+	 */
+	public int getDuration();
+
+	/**
+	 * 曲の最後に達した時に先頭に戻るかどうか
+	 *
+	 * @param looping
+	 */
+	public void setLooping(boolean looping);
+
+	/**
+	 * ループ区間を設定する
+	 * エンジン自身がサンプル単位で区間をループできる場合はtrueを返し、
+	 * 折り返すたびにListener.onLoopで通知する
+	 *
+	 * @param startMillis
+	 *            ループ区間の開始位置(ミリ秒)
+	 * @param endMillis
+	 *            ループ区間の終了位置(ミリ秒) 0以下の場合は曲の最後
+	 * @return エンジン自身がループを行う場合true
+	 */
+	public boolean setLoopRegion(long startMillis, long endMillis);
+
+	/**
+	 * 出来事を受け取るリスナーのセット
+	 *
+	 * @param listener
+	 */
+	public void setListener(Listener listener);
+
+	/**
+	 * 再生エンジンの出来事を受け取るリスナー メインスレッドで呼ばれる
+	 *
+	 * @author maro
+	 *
+	 */
+	public interface Listener {
+		/**
+		 * prepareAsyncの再生準備が完了した
+		 *
+		 * @param engine
+		 */
+		public void onPrepared(PlaybackEngine engine);
+
+		/**
+		 * 再生準備または再生に失敗した
+		 *
+		 * @param engine
+		 * @param message
+		 *            エラーの内容
+		 */
+		public void onError(PlaybackEngine engine, String message);
+
+		/**
+		 * 曲の最後に達して再生が終わった
+		 *
+		 * @param engine
+		 */
+		public void onCompletion(PlaybackEngine engine);
+
+		/**
+		 * シークが完了した
+		 *
+		 * @param engine
+		 */
+		public void onSeekComplete(PlaybackEngine engine);
+
+		/**
+		 * ループ区間の終わりで開始位置に折り返した音が鳴り始めた
+		 *
+		 * @param engine
+		 */
+		public void onLoop(PlaybackEngine engine);
+	}
+}
@@ -0,0 +1,234 @@
+package ultra.alarm;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * プレイヤーで起きた出来事をリスナーに通知するクラス
+ * 出来事は事前に確保したリングバッファに書き込み、メインスレッドでまとめてリスナーに配る
+ * 書き込み側は1スレッドに限る
+ *
+ * @author maro
+ *
+ */
+public class PlayerEventBus {
+	/**
+	 * 再生が始まった
+	 */
+	public static final int EVENT_STARTED = 1;
+	/**
+	 * 再生が止まった
+	 */
+	public static final int EVENT_PAUSED = 2;
+	/**
+	 * シークした
+	 */
+	public static final int EVENT_SEEKED = 3;
+	/**
+	 * ループして先頭に戻った
+	 */
+	public static final int EVENT_LOOPED = 4;
+	/**
+	 * 停止ボタンが停止可能時間内に押された valueは範囲のインデックス
+	 */
+	public static final int EVENT_PRESS_ACCEPTED = 5;
+	/**
+	 * 停止ボタンが停止可能時間外に押された
+	 */
+	public static final int EVENT_PRESS_REJECTED = 6;
+	/**
+	 * 停止可能時間に入った valueは範囲のインデックス
+	 */
+	public static final int EVENT_WINDOW_ENTERED = 7;
+	/**
+	 * 停止可能時間から出た valueは範囲のインデックス
+	 */
+	public static final int EVENT_WINDOW_EXITED = 8;
+	/**
+	 * stopボタンを押した回数が変わった valueは新しい回数
+	 */
+	public static final int EVENT_COUNTER_CHANGED = 9;
+	/**
+	 * 再生準備が完了した valueは準備にかかった時間(ミリ秒)
+	 */
+	public static final int EVENT_PREPARED = 10;
+	/**
+	 * 再生準備または再生に失敗した
+	 */
+	public static final int EVENT_ERROR = 11;
+
+	/**
+	 * リングバッファの大きさ 2のべき乗
+	 */
+	private static final int CAPACITY = 64;
+	private static final int MASK = CAPACITY - 1;
+
+	/**
+	 * 出来事の種類
+	 */
+	private final int[] types = new int[CAPACITY];
+	/**
+	 * 出来事が起きた時の再生位置(ミリ秒)
+	 */
+	private final long[] positions = new long[CAPACITY];
+	/**
+	 * 出来事ごとの値
+	 */
+	private final int[] values = new int[CAPACITY];
+
+	/**
+	 * 書き込んだ数
+	 */
+	private volatile long head;
+	/**
+	 * 読み出した数
+	 */
+	private volatile long tail;
+	/**
+	 * バッファが一杯で捨てた数
+	 */
+	private volatile int dropped;
+
+	/**
+	 * 配布処理が予約されているか
+	 */
+	private final AtomicBoolean dispatchScheduled = new AtomicBoolean();
+
+	/**
+	 * 登録されているリスナー 登録・解除の時だけ作り直す
+	 */
+	private OnPlayerEventListener[] listeners = new OnPlayerEventListener[0];
+
+	/**
+	 * メインスレッドのハンドラー
+	 */
+	private final Handler handler = new Handler(Looper.getMainLooper());
+
+	/**
+	 * 配布処理 使い回すために一つだけ生成する
+	 */
+	private final Runnable dispatchTask = new Runnable() {
+		@Override
+		public void run() {
+			dispatchScheduled.set(false);
+			dispatch();
+		}
+	};
+
+	/**
+	 * 出来事を書き込み、配布を予約する
+	 *
+	 * @param type
+	 *            出来事の種類
+	 * @param position
+	 *            出来事が起きた時の再生位置(ミリ秒)
+	 * @param value
+	 *            出来事ごとの値
+	 * @return 書き込めた場合true。バッファが一杯の場合false
+	 */
+	public boolean publish(int type, long position, int value) {
+		long h = head;
+		if (h - tail >= CAPACITY) {
+			dropped++;
+			return false;
+		}
+		int i = (int) (h & MASK);
+		types[i] = type;
+		positions[i] = position;
+		values[i] = value;
+		// volatileの書き込みで内容を読み出し側に公開する
+		head = h + 1;
+		if (dispatchScheduled.compareAndSet(false, true)) {
+			handler.post(dispatchTask);
+		}
+		return true;
+	}
+
+	/**
+	 * 溜まっている出来事をすべてリスナーに配る
+	 */
+	private void dispatch() {
+		OnPlayerEventListener[] current = listeners;
+		long t = tail;
+		while (t < head) {
+			int i = (int) (t & MASK);
+			int type = types[i];
+			long position = positions[i];
+			int value = values[i];
+			tail = ++t;
+			for (int j = 0; j < current.length; j++) {
+				current[j].onPlayerEvent(type, position, value);
+			}
+		}
+	}
+
+	/**
+	 * リスナーの登録 メインスレッドから呼ぶ
+	 *
+	 * @param listener
+	 */
+	public void addListener(OnPlayerEventListener listener) {
+		OnPlayerEventListener[] next = new OnPlayerEventListener[listeners.length + 1];
+		System.arraycopy(listeners, 0, next, 0, listeners.length);
+		next[listeners.length] = listener;
+		listeners = next;
+	}
+
+	/**
+	 * リスナーの解除 メインスレッドから呼ぶ
+	 *
+	 * @param listener
+	 */
+	public void removeListener(OnPlayerEventListener listener) {
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i] == listener) {
+				OnPlayerEventListener[] next = new OnPlayerEventListener[listeners.length - 1];
+				System.arraycopy(listeners, 0, next, 0, i);
+				System.arraycopy(listeners, i + 1, next, i, next.length - i);
+				listeners = next;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * 配布を止め、溜まっている出来事を捨てる
+	 */
+	public void clear() {
+		handler.removeCallbacks(dispatchTask);
+		dispatchScheduled.set(false);
+		tail = head;
+		listeners = new OnPlayerEventListener[0];
+	}
+
+	/**
+	 * バッファが一杯で捨てた出来事の数
+	 *
+	 * @return
+	 */
+	public int getDroppedCount() {
+		return dropped;
+	}
+
+	/**
+	 * プレイヤーの出来事を受け取るリスナー
+	 *
+	 * @author maro
+	 *
+	 */
+	public interface OnPlayerEventListener {
+		/**
+		 * 出来事の通知 メインスレッドで呼ばれる
+		 *
+		 * @param type
+		 *            出来事の種類 EVENT_で始まる定数
+		 * @param position
+		 *            出来事が起きた時の再生位置(ミリ秒)
+		 * @param value
+		 *            出来事ごとの値
+		 */
+		public void onPlayerEvent(int type, long position, int value);
+	}
+}
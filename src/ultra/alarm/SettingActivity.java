@@ -1,5 +1,8 @@
 package ultra.alarm;
 
+import java.io.File;
+import java.io.IOException;
+
 import android.app.Activity;
 import android.net.Uri;
 import android.os.Bundle;
@@ -7,6 +10,11 @@ import android.view.View;
 import android.widget.Button;
 import android.widget.LinearLayout;
 
+import ultra.alarm.utility.FileListDialog;
+import ultra.alarm.utility.MediaIndex;
+import ultra.alarm.utility.MediaIndexer;
+import ultra.alarm.utility.Utility;
+
 /**
  * 設定を行うためのactivity
  * 元画面から遷移してくるactivity
@@ -30,11 +38,21 @@ public class SettingActivity extends Activity{
 	private Uri uri;
 
 	/**
-	 * 停止可能時間
+	 * 停止可能時間 保存されていない場合の初期値
 	 */
 	private long startTime = (long) (4.3 * 1000);
 	private long endTime = (long) (5.0 * 1000);
 
+	/**
+	 * 曲と停止可能時間の保存先 開けなかった場合はnull
+	 */
+	private AlarmStore store;
+
+	/**
+	 * 曲を選ぶダイアログ 2回目以降はすぐに開けるように使い回す
+	 */
+	private FileListDialog musicDialog;
+
 	@Override
 	public void onCreate(Bundle saveInstanceState){
 		super.onCreate(saveInstanceState);
@@ -42,20 +60,44 @@ public class SettingActivity extends Activity{
 
 		LinearLayout linearLayout = (LinearLayout)findViewById(R.id.setting_linearLayout);
 
-		// プレイヤー用ビューの生成
-		uPlayerView = new UltraPlayerView(this);
+		// プレイヤー用ビューの生成 アラームと同じ条件で再生エンジンを選ぶ
+		uPlayerView = new UltraPlayerView(this, UltraPlayer.ENGINE_AUTO);
 
 		// uriの生成
 		uri = Uri.parse("android.resource://"+this.getPackageName()+"/"+R.raw.ultra_soul);
 
+		// 保存されている曲と停止可能時間を読む 無ければ初期値を保存する
+		String music = uri.toString();
+		long[] windows = { startTime, endTime };
+		try {
+			store = AlarmStore.getInstance(this);
+			store.putTrackIfAbsent(AlarmStore.DEFAULT_TRACK_ID, music, windows);
+			music = store.getTrackPath(AlarmStore.DEFAULT_TRACK_ID);
+			windows = store.getWindows(AlarmStore.DEFAULT_TRACK_ID);
+		} catch (IOException e) {
+			store = null;
+			Utility.showToast(this, "設定を読み込めませんでした");
+		}
+
 		// 音源のセット
 		//uPlayerView.setMusic(path);
-		uPlayerView.setMusic(uri);
+		uPlayerView.setMusicSource(music);
 		// 停止可能時間のセット
-		uPlayerView.addTimeRange(startTime, endTime);
+		for (int i = 0; i + 1 < windows.length; i += 2) {
+			uPlayerView.addTimeRange(windows[i], windows[i + 1]);
+		}
 
 		linearLayout.addView(uPlayerView);
 
+		// 曲を選ぶボタン
+		Button selectBtn = (Button)findViewById(R.id.selectMusicBottun);
+		selectBtn.setOnClickListener(new View.OnClickListener() {
+			@Override
+			public void onClick(View v) {
+				showMusicDialog();
+			}
+		});
+
 		// 元画面に戻るボタン
 		Button returnBtn = (Button)findViewById(R.id.returnBottun);
 		returnBtn.setOnClickListener(new View.OnClickListener() {
@@ -67,6 +109,105 @@ public class SettingActivity extends Activity{
 		});
 	}
 
+	/**
+	 * 画面が前面に来た時に呼ばれる処理
+	 */
+	@Override
+	public void onResume() {
+		super.onResume();
+
+		// 表示の更新を再開する
+		uPlayerView.resume();
+		// 音声ファイルの索引を更新する
+		MediaIndexer.startIndexing(this);
+	}
+
+	/**
+	 * 曲を選ぶダイアログを表示する
+	 * 索引ができていればすべての音声ファイルから、まだならSDカードから選ぶ
+	 * 索引はバックグラウンドで読み、読み終えてから表示する
+	 */
+	private void showMusicDialog() {
+		if (musicDialog == null) {
+			musicDialog = new FileListDialog(this);
+			musicDialog.setOnFileListDialogListener(new FileListDialog.onFileListDialogListener() {
+				@Override
+				public void onClickFileList(File file) {
+					selectMusic(file);
+				}
+			});
+		}
+		final MediaIndex index = MediaIndex.getInstance(this);
+		index.loadAsync(new Runnable() {
+			@Override
+			public void run() {
+				if (isFinishing()) {
+					return;
+				}
+				if (index.isEmpty()) {
+					musicDialog.show(Utility.getSdcardPath(), "曲を選ぶ");
+				} else {
+					musicDialog.showAudioFiles("曲を選ぶ");
+				}
+			}
+		});
+	}
+
+	/**
+	 * 選んだ曲を再生し、保存する
+	 *
+	 * @param file
+	 */
+	private void selectMusic(File file) {
+		if (file == null || file.isDirectory()) {
+			return;
+		}
+		String music = file.getAbsolutePath();
+		uPlayerView.setMusicSource(music);
+		if (store != null) {
+			try {
+				store.putTrack(AlarmStore.DEFAULT_TRACK_ID, music);
+			} catch (IOException e) {
+				Utility.showToast(this, "設定を保存できませんでした");
+			}
+		}
+	}
+
+	/**
+	 * 画面が前面から外れた時に呼ばれる処理
+	 */
+	@Override
+	public void onPause() {
+		super.onPause();
+
+		// 表示の更新を止める
+		uPlayerView.pause();
+		// 索引の更新を止める 次回は続きから
+		MediaIndexer.stopIndexing();
+		// 編集した停止可能時間を保存する ディスクへの反映はバックグラウンドで行う
+		if (store != null) {
+			try {
+				store.setWindowsLater(AlarmStore.DEFAULT_TRACK_ID,
+						uPlayerView.getTimeRangeArray());
+			} catch (IOException e) {
+				Utility.showToast(this, "設定を保存できませんでした");
+			}
+		}
+	}
+
+	/**
+	 * メモリが足りない時に呼ばれる処理
+	 */
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+
+		// 使い回しているダイアログとキャッシュを捨てる
+		if (musicDialog != null) {
+			musicDialog.trimMemory();
+		}
+	}
+
 	/**
 	 * アプリケーション終了時に呼ばれる処理
 	 */
@@ -0,0 +1,237 @@
+package ultra.alarm;
+
+import java.util.AbstractList;
+import java.util.List;
+
+import ultra.alarm.UltraPlayer.TimePair;
+
+/**
+ * 停止可能時間の集合を管理するクラス
+ * 範囲は開始時間順に並べ、重なる範囲は統合した状態でlongの配列に保持する
+ *
+ * @author maro
+ *
+ */
+public class TimeRangeIndex {
+	/**
+	 * 配列の初期容量
+	 */
+	private static final int INITIAL_CAPACITY = 16;
+
+	/**
+	 * 範囲の開始時間(ミリ秒)
+	 */
+	private long[] starts;
+	/**
+	 * 範囲の終了時間(ミリ秒)
+	 */
+	private long[] ends;
+	/**
+	 * 保持している範囲の数
+	 */
+	private int size;
+
+	/**
+	 * 読み取り専用のTimePairのリスト
+	 */
+	private final List<TimePair> view = new AbstractList<TimePair>() {
+		@Override
+		public TimePair get(int index) {
+			checkIndex(index);
+			return new TimePair(starts[index], ends[index]);
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	};
+
+	/**
+	 * コンストラクタ
+	 */
+	public TimeRangeIndex() {
+		starts = new long[INITIAL_CAPACITY];
+		ends = new long[INITIAL_CAPACITY];
+		size = 0;
+	}
+
+	/**
+	 * 範囲を加える 重なる範囲や接する範囲は一つに統合する
+	 *
+	 * @param startTime
+	 *            開始時間(ミリ秒)
+	 * @param endTime
+	 *            終了時間(ミリ秒)
+	 */
+	public void add(long startTime, long endTime) {
+		long start = Math.min(startTime, endTime);
+		long end = Math.max(startTime, endTime);
+
+		// 挿入位置の直前の範囲と重なっていれば統合する
+		int index = floor(start);
+		if (index >= 0 && ends[index] >= start) {
+			ends[index] = Math.max(ends[index], end);
+		} else {
+			index++;
+			ensureCapacity(size + 1);
+			System.arraycopy(starts, index, starts, index + 1, size - index);
+			System.arraycopy(ends, index, ends, index + 1, size - index);
+			starts[index] = start;
+			ends[index] = end;
+			size++;
+		}
+
+		// 後ろに続く範囲のうち重なるものを吸収する
+		int last = index;
+		while (last + 1 < size && starts[last + 1] <= ends[index]) {
+			last++;
+			ends[index] = Math.max(ends[index], ends[last]);
+		}
+		removeRange(index + 1, last + 1);
+	}
+
+	/**
+	 * 範囲の削除
+	 *
+	 * @param index
+	 *            開始時間順に並んだ範囲のインデックス
+	 */
+	public void remove(int index) {
+		checkIndex(index);
+		removeRange(index, index + 1);
+	}
+
+	/**
+	 * すべての範囲を削除する
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * 引数の時間を含む範囲のインデックスを二分探索で求める
+	 *
+	 * @param time
+	 *            サウンド開始からの時間(ミリ秒)
+	 * @return timeを含む範囲のインデックス。含む範囲が無い場合は-1
+	 */
+	public int find(long time) {
+		int index = floor(time);
+		if (index >= 0 && time <= ends[index]) {
+			return index;
+		}
+		return -1;
+	}
+
+	/**
+	 * 開始時間が引数の時間以下である最後の範囲のインデックスを求める
+	 *
+	 * @param time
+	 *            サウンド開始からの時間(ミリ秒)
+	 * @return 該当する範囲のインデックス。存在しない場合は-1
+	 */
+	public int floor(long time) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (starts[mid] <= time) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return high;
+	}
+
+	/**
+	 * 保持している範囲の数
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * 範囲の開始時間
+	 *
+	 * @param index
+	 * @return 開始時間(ミリ秒)
+	 */
+	public long getStart(int index) {
+		checkIndex(index);
+		return starts[index];
+	}
+
+	/**
+	 * 範囲の終了時間
+	 *
+	 * @param index
+	 * @return 終了時間(ミリ秒)
+	 */
+	public long getEnd(int index) {
+		checkIndex(index);
+		return ends[index];
+	}
+
+	/**
+	 * 読み取り専用のTimePairのリストを取得する
+	 * 要素は取得の度に生成されるため、判定処理には使わないこと
+	 *
+	 * @return
+	 */
+	public List<TimePair> asList() {
+		return view;
+	}
+
+	/**
+	 * [from, to)の範囲を詰める
+	 *
+	 * @param from
+	 * @param to
+	 */
+	private void removeRange(int from, int to) {
+		if (from >= to) {
+			return;
+		}
+		System.arraycopy(starts, to, starts, from, size - to);
+		System.arraycopy(ends, to, ends, from, size - to);
+		size -= to - from;
+	}
+
+	/**
+	 * 配列の容量を確保する 足りない場合は倍に拡張する
+	 *
+	 * @param capacity
+	 */
+	private void ensureCapacity(int capacity) {
+		if (capacity <= starts.length) {
+			return;
+		}
+		int newCapacity = starts.length * 2;
+		if (newCapacity < capacity) {
+			newCapacity = capacity;
+		}
+		long[] newStarts = new long[newCapacity];
+		long[] newEnds = new long[newCapacity];
+		System.arraycopy(starts, 0, newStarts, 0, size);
+		System.arraycopy(ends, 0, newEnds, 0, size);
+		starts = newStarts;
+		ends = newEnds;
+	}
+
+	/**
+	 * インデックスの範囲チェック
+	 *
+	 * @param index
+	 */
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("index:" + index + " size:"
+					+ size);
+		}
+	}
+
+}
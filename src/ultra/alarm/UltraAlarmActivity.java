@@ -1,10 +1,19 @@
 package ultra.alarm;
 
+import java.io.IOException;
+import java.text.DateFormat;
+import java.util.Calendar;
+import java.util.Date;
+
 import android.app.Activity;
+import android.app.TimePickerDialog;
 import android.content.Intent;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.Button;
+import android.widget.TimePicker;
+
+import ultra.alarm.utility.Utility;
 
 /**
  * UltraAlarmアプリケーションクラス touchイベントによりプレイヤーを止める機能を持つ
@@ -13,6 +22,11 @@ import android.widget.Button;
  *
  */
 public class UltraAlarmActivity extends Activity {
+	/**
+	 * 画面からセットするアラームのID
+	 */
+	private static final int ALARM_ID = 0;
+
 	/** Called when the activity is first created. */
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -31,5 +45,51 @@ public class UltraAlarmActivity extends Activity {
 				startActivity(intent);
 			}
 		});
+
+		// アラームをセットするボタン
+		Button setAlarmBtn = (Button)findViewById(R.id.setAlarmBottun);
+		setAlarmBtn.setOnClickListener(new View.OnClickListener() {
+			@Override
+			public void onClick(View v) {
+				showAlarmTimePicker();
+			}
+		});
+	}
+
+	/**
+	 * 鳴らす時刻を選ぶダイアログを表示し、選ばれた時刻にアラームをセットする
+	 */
+	private void showAlarmTimePicker() {
+		Calendar now = Calendar.getInstance();
+		new TimePickerDialog(this, new TimePickerDialog.OnTimeSetListener() {
+			@Override
+			public void onTimeSet(TimePicker view, int hourOfDay, int minute) {
+				long dueTime = AlarmScheduler.nextOccurrence(hourOfDay,
+						minute, System.currentTimeMillis());
+				String musicUri = "android.resource://" + getPackageName()
+						+ "/" + R.raw.ultra_soul;
+				long[] windows = AlarmActivity.DEFAULT_WINDOWS;
+				// 設定画面で保存した曲と停止可能時間で鳴らす
+				// ディスクへの反映はバックグラウンドで行い、画面を止めない
+				try {
+					AlarmStore store = AlarmStore
+							.getInstance(UltraAlarmActivity.this);
+					int trackId = AlarmStore.DEFAULT_TRACK_ID;
+					store.putTrackIfAbsentLater(trackId, musicUri, windows);
+					store.putAlarmLater(ALARM_ID, trackId, dueTime, true);
+					musicUri = store.getTrackPath(trackId);
+					windows = store.getWindows(trackId);
+				} catch (IOException e) {
+					Utility.showToast(UltraAlarmActivity.this,
+							"設定を保存できませんでした");
+				}
+				new AlarmScheduler(UltraAlarmActivity.this).schedule(ALARM_ID,
+						dueTime, musicUri, windows);
+				Utility.showToast(UltraAlarmActivity.this, DateFormat
+						.getDateTimeInstance().format(new Date(dueTime))
+						+ "にアラームをセットしました");
+			}
+		}, now.get(Calendar.HOUR_OF_DAY), now.get(Calendar.MINUTE), true)
+				.show();
 	}
 }
\ No newline at end of file
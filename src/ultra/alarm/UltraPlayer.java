@@ -1,14 +1,15 @@
 package ultra.alarm;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import android.app.AlertDialog;
 import android.content.Context;
-import android.media.AudioManager;
-import android.media.MediaPlayer;
-import android.media.MediaPlayer.OnCompletionListener;
 import android.net.Uri;
-import android.util.Log;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import ultra.alarm.utility.Utility;
 
 /**
  * ウルトラ目覚まし用プレイヤー 特定のタイミングで停止ボタンを押さないと停止しない音楽プレイヤー
@@ -16,19 +17,94 @@ import android.util.Log;
  * @author maro
  *
  */
-public class UltraPlayer implements OnCompletionListener {
+public class UltraPlayer implements PlaybackEngine.Listener {
+	/**
+	 * MediaPlayerで再生する 圧縮された音源も扱える
+	 */
+	public static final int ENGINE_MEDIA_PLAYER = 0;
+	/**
+	 * AudioTrackにPCMを書き込んで再生する 停止位置とループがサンプル単位で正確になる
+	 */
+	public static final int ENGINE_PCM = 1;
+	/**
+	 * 音源ごとに選ぶ PcmCacheで変換できるWAVEはENGINE_PCM、それ以外はENGINE_MEDIA_PLAYERで再生する
+	 * PCMへの変換に失敗した場合はMediaPlayerで再生し直す
+	 */
+	public static final int ENGINE_AUTO = 2;
+
+	/**
+	 * 音源がセットされていない
+	 */
+	public static final int STATE_IDLE = 0;
+	/**
+	 * バックグラウンドで再生準備中 この間の操作は準備完了後に順に行う
+	 */
+	public static final int STATE_PREPARING = 1;
+	/**
+	 * 再生準備完了
+	 */
+	public static final int STATE_PREPARED = 2;
+	/**
+	 * 再生準備に失敗した
+	 */
+	public static final int STATE_ERROR = 3;
+
+	/**
+	 * 準備完了まで待たせる操作の種類
+	 */
+	private static final int OP_START = 0;
+	private static final int OP_PAUSE = 1;
+	private static final int OP_SEEK = 2;
+	private static final int OP_STOP_ACTION = 3;
+
 	/**
 	 * 呼び出されるActivityのコンテキスト
 	 */
 	private Context context;
 	/**
-	 * 音楽再生用メディアプレイヤー
+	 * 再生エンジンの種類
+	 */
+	private final int engineType;
+	/**
+	 * 音楽再生用エンジン
+	 */
+	private PlaybackEngine engine;
+	/**
+	 * PCMで再生する時のキャッシュ 使う時に作る
+	 */
+	private PcmCache pcmCache;
+	/**
+	 * エンジン自身がループ区間を折り返すかどうか
+	 */
+	private boolean engineLoops;
+	/**
+	 * 停止ボタンの判定で先に済ませた、エンジンからの通知待ちのループの数
+	 */
+	private int pendingEngineLoops;
+	/**
+	 * 再生準備の状態
+	 */
+	private int state = STATE_IDLE;
+	/**
+	 * 再生準備を始めた時刻 SystemClock.uptimeMillis()基準(ミリ秒)
 	 */
-	private MediaPlayer mediaPlayer;
+	private long prepareStartTime;
+	/**
+	 * 音源をセットしてから再生準備が完了するまでにかかった時間(ミリ秒)
+	 */
+	private long timeToReady = -1;
+	/**
+	 * 準備完了まで待たせている操作
+	 */
+	private final ArrayList<PendingOp> pendingOps = new ArrayList<PendingOp>();
 	/**
 	 * メディアプレイヤーの再生音源の場所
 	 */
 	private String musicPath;
+	/**
+	 * uriで音源をセットした場合のuri パスの場合はnull
+	 */
+	private Uri musicUri;
 
 	/**
 	 * 1ループの間に停止ボタンを押せる回数
@@ -41,28 +117,85 @@ public class UltraPlayer implements OnCompletionListener {
 	private int stopCounter;
 
 	/**
-	 * プレイヤーを停止出来るタイミングのリスト
+	 * プレイヤーを停止出来るタイミングの集合
 	 */
-	private ArrayList<TimePair> timeRanges;
+	private TimeRangeIndex timeRanges;
 
 	/**
-	 * コンストラクタ
+	 * 再生位置を補間する時計
+	 */
+	private PlaybackClock clock;
+
+	/**
+	 * プレイヤーの出来事を通知するバス
+	 */
+	private PlayerEventBus eventBus;
+
+	/**
+	 * 停止可能時間の境界を通知するスケジューラ
+	 */
+	private WindowBoundaryScheduler boundaryScheduler;
+
+	/**
+	 * ループ区間の開始位置(ミリ秒)
+	 */
+	private long loopStart;
+	/**
+	 * ループ区間の終了位置(ミリ秒) 0以下の場合は曲の最後
+	 */
+	private long loopEnd;
+
+	/**
+	 * ループ用タイマーのハンドラー
+	 */
+	private final Handler loopHandler = new Handler(Looper.getMainLooper());
+
+	/**
+	 * ループ区間の終わりに達した時の処理 使い回すために一つだけ生成する
+	 */
+	private final Runnable loopTask = new Runnable() {
+		@Override
+		public void run() {
+			loopBoundary();
+		}
+	};
+
+	/**
+	 * コンストラクタ MediaPlayerで再生する
 	 */
 	public UltraPlayer(Context context) {
-		// メディアプレイヤーの生成
-		mediaPlayer = new MediaPlayer();
-		// ストリームタイプの設定
-		mediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC); // 音楽の再生モード
-		// ループ再生を行う
-		//mediaPlayer.setLooping(true);
+		this(context, ENGINE_MEDIA_PLAYER);
+	}
+
+	/**
+	 * コンストラクタ
+	 *
+	 * @param context
+	 * @param engineType
+	 *            ENGINE_MEDIA_PLAYER、ENGINE_PCM、ENGINE_AUTOのいずれか
+	 */
+	public UltraPlayer(Context context, int engineType) {
+		this.context = context;
+		this.engineType = engineType;
+		// 再生エンジンの生成 ENGINE_AUTOの場合は音源をセットした時に選び直す
+		engine = createEngine(engineType == ENGINE_PCM);
+		// ループ再生を行う 曲全体のループはエンジン側で切れ目なく行う
+		applyLoopRegion();
 		// pathの生成
 		musicPath = new String();
 		// 停止可能回数の初期化
 		canStopNum = 1;
 		// timeRangesの生成
-		timeRanges = new ArrayList<TimePair>();
+		timeRanges = new TimeRangeIndex();
+		// 時計の生成
+		clock = new PlaybackClock();
+		// 出来事の通知用バスの生成
+		eventBus = new PlayerEventBus();
+		// 境界通知用スケジューラの生成
+		boundaryScheduler = new WindowBoundaryScheduler(timeRanges, clock,
+				eventBus);
 		// リスナーのセット
-		mediaPlayer.setOnCompletionListener(this);
+		engine.setListener(this);
 	}
 
 	public UltraPlayer(Context context, String path) {
@@ -75,17 +208,36 @@ public class UltraPlayer implements OnCompletionListener {
 	 * 再生開始
 	 */
 	public void start() {
+		if (state != STATE_PREPARED) {
+			enqueue(OP_START, 0);
+			return;
+		}
+		// 書き込み直しでエンジンの折り返し待ちは無くなる
+		pendingEngineLoops = 0;
 		// 再生開始
-		mediaPlayer.start();
+		engine.start();
+		// 再生開始位置を時計の基準にする
+		int position = engine.getCurrentPosition();
+		clock.start(position);
+		eventBus.publish(PlayerEventBus.EVENT_STARTED, position, 0);
+		rearmTimers();
 	}
 
 	/**
 	 * 強制停止
 	 */
 	public void absolutePause() {
-		if (mediaPlayer.isPlaying()) {
+		if (state != STATE_PREPARED) {
+			enqueue(OP_PAUSE, 0);
+			return;
+		}
+		if (engine.isPlaying()) {
 			// プレイヤーを停止させる
-			mediaPlayer.pause();
+			engine.pause();
+			int position = engine.getCurrentPosition();
+			clock.pause(position);
+			eventBus.publish(PlayerEventBus.EVENT_PAUSED, position, 0);
+			rearmTimers();
 		}
 	}
 
@@ -95,69 +247,359 @@ public class UltraPlayer implements OnCompletionListener {
 	 * @param msec
 	 */
 	public void seekTo(int msec) {
+		if (state != STATE_PREPARED) {
+			enqueue(OP_SEEK, msec);
+			return;
+		}
 		// 停止回数を初期化する
-		stopCounter = 0;
+		resetStopCounter(msec);
 		// シークさせる
-		mediaPlayer.seekTo(msec);
+		pendingEngineLoops = 0;
+		engine.seekTo(msec);
+		clock.seek(msec);
+		eventBus.publish(PlayerEventBus.EVENT_SEEKED, msec, 0);
+		rearmTimers();
 	}
 
 	/**
 	 * メディアプレイヤーの停止動作のタイミングに呼ぶメソッド
+	 * 呼び出した時点の再生位置で判定する
 	 */
 	public void stopAction() {
+		stopAction(SystemClock.uptimeMillis());
+	}
+
+	/**
+	 * メディアプレイヤーの停止動作のタイミングに呼ぶメソッド
+	 * 引数の時刻での再生位置で判定するため、メインスレッドの処理待ちで判定が遅れない
+	 *
+	 * @param eventTime
+	 *            停止ボタンが押された時刻 SystemClock.uptimeMillis()基準(ミリ秒)
+	 *            MotionEvent.getEventTime()、KeyEvent.getEventTime()の値
+	 */
+	public void stopAction(long eventTime) {
+		if (state != STATE_PREPARED) {
+			enqueue(OP_STOP_ACTION, eventTime);
+			return;
+		}
+		resyncClock();
+		// 押された時刻の再生位置を時計から求める
+		long eventNanos = PlaybackClock.fromUptimeMillis(eventTime);
+		long positionMillis = clock.getPositionAt(eventNanos)
+				/ PlaybackClock.NANOS_PER_MILLI;
+
+		// ループの境界を越えた後の押下は、先にループを済ませてから数える
+		// 曲の終わりで折り返す場合に境界で止まらないよう、切り詰めない位置で判定する
+		long end = getLoopEndMillis();
+		long unclampedMillis = clock.getUnclampedPositionAt(eventNanos)
+				/ PlaybackClock.NANOS_PER_MILLI;
+		if (clock.isRunning() && end > 0 && unclampedMillis >= end) {
+			if (engineLoops) {
+				// エンジンは既に折り返しているので、後から届く通知は読み捨てる
+				pendingEngineLoops++;
+			}
+			loopBoundary();
+			long length = end - loopStart;
+			long over = unclampedMillis - end;
+			positionMillis = loopStart + (length > 0 ? over % length : 0);
+		}
+
 		// stopボタンを押した回数を増やす
 		stopCounter++;
+		eventBus.publish(PlayerEventBus.EVENT_COUNTER_CHANGED, positionMillis,
+				stopCounter);
 		// stopボタンを押した数が停止可能回数を上回った時
 		if (stopCounter > canStopNum) {
+			eventBus.publish(PlayerEventBus.EVENT_PRESS_REJECTED,
+					positionMillis, -1);
 			return;	// 処理を行わない
 		}
-		// すべての範囲リストを調べる
-		for (TimePair range : timeRanges) {
-			// 範囲内に収まっていれば
-			if (range.isInRange(this.mediaPlayer.getCurrentPosition())) {
-				// プレイヤーの停止
-				mediaPlayer.pause();
-				break;
-			}
+		// 範囲内に収まっていれば
+		int index = timeRanges.find(positionMillis);
+		if (index >= 0) {
+			// プレイヤーの停止 押された位置で止められるエンジンはその位置で止まる
+			engine.pauseAt(positionMillis);
+			int pausedPosition = engine.getCurrentPosition();
+			clock.pause(pausedPosition);
+			eventBus.publish(PlayerEventBus.EVENT_PRESS_ACCEPTED,
+					positionMillis, index);
+			eventBus.publish(PlayerEventBus.EVENT_PAUSED, pausedPosition, 0);
+			rearmTimers();
+		} else {
+			eventBus.publish(PlayerEventBus.EVENT_PRESS_REJECTED,
+					positionMillis, -1);
+		}
+	}
+
+	/**
+	 * ループ区間を設定する
+	 * 区間の終わりで停止回数を0に戻し、開始位置に戻って再生を続ける
+	 *
+	 * @param startTime
+	 *            ループ区間の開始位置(ミリ秒)
+	 * @param endTime
+	 *            ループ区間の終了位置(ミリ秒) 0以下の場合は曲の最後
+	 */
+	public void setLoopRegion(long startTime, long endTime) {
+		if (endTime > 0 && endTime <= startTime) {
+			throw new IllegalArgumentException("loop end must be after start");
+		}
+		loopStart = Math.max(0, startTime);
+		loopEnd = endTime;
+		// 準備中のエンジンには準備完了時にセットする
+		if (state != STATE_PREPARING) {
+			applyLoopRegion();
+		}
+		rearmTimers();
+	}
+
+	/**
+	 * ループ区間をエンジンにセットする
+	 * 区間をループできるエンジンには区間ごと任せる
+	 * できない場合は曲全体のループの場合だけエンジン側のループを使う
+	 */
+	private void applyLoopRegion() {
+		engineLoops = engine.setLoopRegion(loopStart, loopEnd);
+		engine.setLooping(engineLoops || isWholeTrackLoop());
+	}
+
+	/**
+	 * ループ区間を曲全体に戻す
+	 */
+	public void clearLoopRegion() {
+		setLoopRegion(0, 0);
+	}
+
+	/**
+	 * 曲全体をループするかどうか
+	 *
+	 * @return
+	 */
+	private boolean isWholeTrackLoop() {
+		return loopStart == 0 && loopEnd <= 0;
+	}
+
+	/**
+	 * ループ区間の実際の終了位置(ミリ秒)
+	 *
+	 * @return 曲の長さが不明な場合は0
+	 */
+	private long getLoopEndMillis() {
+		long duration = getDuration();
+		if (loopEnd > 0 && (duration <= 0 || loopEnd < duration)) {
+			return loopEnd;
+		}
+		return duration;
+	}
+
+	/**
+	 * ループ区間の終わりに達した時の処理
+	 * 停止回数を戻してから開始位置に戻す
+	 */
+	private void loopBoundary() {
+		loopHandler.removeCallbacks(loopTask);
+		// 境界の時点で停止回数を戻す
+		resetStopCounter(loopStart);
+		if (!engineLoops && !isWholeTrackLoop()) {
+			// 再生を止めずに開始位置に戻す
+			engine.seekTo((int) loopStart);
+		}
+		// エンジン側のループでは既に開始位置に戻っている
+		clock.start(loopStart);
+		eventBus.publish(PlayerEventBus.EVENT_LOOPED, loopStart, 0);
+		rearmTimers();
+	}
+
+	/**
+	 * 境界通知とループのタイマーを仕掛け直す
+	 */
+	private void rearmTimers() {
+		boundaryScheduler.rearm();
+
+		loopHandler.removeCallbacks(loopTask);
+		// エンジン自身が折り返す場合は通知を待つ
+		if (engineLoops) {
+			return;
+		}
+		long end = getLoopEndMillis();
+		if (!clock.isRunning() || end <= 0) {
+			return;
+		}
+		long delayNanos = end * PlaybackClock.NANOS_PER_MILLI
+				- clock.getPosition();
+		long delayMillis = Math.max(0, delayNanos
+				/ PlaybackClock.NANOS_PER_MILLI);
+		loopHandler.postAtTime(loopTask, SystemClock.uptimeMillis()
+				+ delayMillis);
+	}
+
+	/**
+	 * 一定間隔ごとに時計をプレイヤーの再生位置に合わせ直す
+	 * 基準が変わった場合は境界のタイマーも仕掛け直す
+	 */
+	private void resyncClock() {
+		if (clock.needsResync()
+				&& clock.resync(engine.getCurrentPosition())) {
+			rearmTimers();
+		}
+	}
+
+	/**
+	 * stopボタンを押した回数を0に戻す
+	 *
+	 * @param position
+	 *            戻した時の再生位置(ミリ秒)
+	 */
+	private void resetStopCounter(long position) {
+		if (stopCounter != 0) {
+			stopCounter = 0;
+			eventBus.publish(PlayerEventBus.EVENT_COUNTER_CHANGED, position, 0);
 		}
 	}
 
 	/**
 	 * 引数のpathにある音楽をメディアプレイヤーにセットする
+	 * 再生準備はバックグラウンドで行い、このメソッドはすぐに戻る
 	 *
 	 * @param path
 	 */
 	public void setMusic(String path) {
-		try {
-			// メディアプレイヤーに音楽をセット
-			mediaPlayer.setDataSource(path);
-			// 再生準備
-			prepare();
-		} catch (Exception e) {
-			// エラー内容のダイアログを表示
-			new AlertDialog.Builder(context).setTitle("error")
-					.setMessage(e.getMessage()).setPositiveButton("OK", null)
-					.show();
-		}
+		beginPrepare();
+		musicPath = path;
+		musicUri = null;
+		selectEngine(PcmCache.canConvert(context, path));
+		prepareMusic(context);
 	}
 
 	/**
 	 * uriを指定して音楽をセットする
+	 * 再生準備はバックグラウンドで行い、このメソッドはすぐに戻る
 	 *
 	 * @param context
 	 * @param uri
 	 */
 	public void setMusic(Context context, Uri uri) {
+		beginPrepare();
+		musicPath = uri.toString();
+		musicUri = uri;
+		selectEngine(PcmCache.canConvert(context, musicPath));
+		prepareMusic(context);
+	}
+
+	/**
+	 * セットした音源を再生エンジンに渡し、再生準備を始める
+	 *
+	 * @param context
+	 */
+	private void prepareMusic(Context context) {
 		try {
-			// メディアプレイヤーに音楽をセット
-			mediaPlayer.setDataSource(context, uri);
+			// 再生エンジンに音楽をセット
+			if (musicUri != null) {
+				engine.setDataSource(context, musicUri);
+			} else {
+				engine.setDataSource(musicPath);
+			}
 			// 再生準備
-			prepare();
+			engine.prepareAsync();
 		} catch (Exception e) {
-			// エラー内容のダイアログを表示
-			new AlertDialog.Builder(context).setTitle("error")
-					.setMessage(e.getMessage()).setPositiveButton("OK", null)
-					.show();
+			onError(engine, e.getMessage());
+		}
+	}
+
+	/**
+	 * 再生エンジンを作る
+	 *
+	 * @param pcm
+	 *            PCMで再生するか
+	 * @return
+	 */
+	private PlaybackEngine createEngine(boolean pcm) {
+		if (!pcm) {
+			return new MediaPlayerEngine();
+		}
+		// 変換済みのPCMはキャッシュから読み、2回目以降は変換を省く
+		if (pcmCache == null) {
+			pcmCache = new PcmCache(context);
+		}
+		return new PcmPlaybackEngine(pcmCache);
+	}
+
+	/**
+	 * ENGINE_AUTOの場合に、音源に合った再生エンジンに切り替える
+	 *
+	 * @param pcm
+	 *            PCMで再生するか
+	 */
+	private void selectEngine(boolean pcm) {
+		if (engineType != ENGINE_AUTO
+				|| (engine instanceof PcmPlaybackEngine) == pcm) {
+			return;
+		}
+		engine.release();
+		engine = createEngine(pcm);
+		engine.setListener(this);
+		applyLoopRegion();
+	}
+
+	/**
+	 * 新しい音源の再生準備を始める
+	 * 前の音源は再生中・準備中にかかわらず取り消し、待たせていた操作も捨てる
+	 */
+	private void beginPrepare() {
+		if (state != STATE_IDLE) {
+			engine.reset();
+		}
+		boundaryScheduler.cancel();
+		loopHandler.removeCallbacks(loopTask);
+		pendingOps.clear();
+		pendingEngineLoops = 0;
+		resetStopCounter(0);
+		clock.setDuration(0);
+		clock.pause(0);
+		state = STATE_PREPARING;
+		prepareStartTime = SystemClock.uptimeMillis();
+		timeToReady = -1;
+	}
+
+	/**
+	 * 準備完了まで操作を待たせる 音源が無い場合や準備に失敗した場合は捨てる
+	 *
+	 * @param type
+	 * @param arg
+	 */
+	private void enqueue(int type, long arg) {
+		if (state == STATE_PREPARING) {
+			pendingOps.add(new PendingOp(type, arg));
+		}
+	}
+
+	/**
+	 * 待たせていた操作を受け付けた順に行う
+	 */
+	private void replayPendingOps() {
+		PendingOp[] ops = pendingOps.toArray(new PendingOp[pendingOps.size()]);
+		pendingOps.clear();
+		for (int i = 0; i < ops.length; i++) {
+			// 途中の操作で次の音源がセットされた場合は残りを捨てる
+			if (state != STATE_PREPARED) {
+				break;
+			}
+			switch (ops[i].type) {
+			case OP_START:
+				start();
+				break;
+			case OP_PAUSE:
+				absolutePause();
+				break;
+			case OP_SEEK:
+				seekTo((int) ops[i].arg);
+				break;
+			case OP_STOP_ACTION:
+				stopAction(ops[i].arg);
+				break;
+			default:
+				break;
+			}
 		}
 	}
 
@@ -165,17 +607,24 @@ public class UltraPlayer implements OnCompletionListener {
 	 * アクティビティのonDestroyで呼ぶメソッド
 	 */
 	public void destroy() {
+		// 出来事の通知を止める
+		boundaryScheduler.cancel();
+		loopHandler.removeCallbacks(loopTask);
+		eventBus.clear();
+		pendingOps.clear();
 		// 再生している状態であれば停止する
-		if (mediaPlayer.isPlaying()) {
-			mediaPlayer.stop();
+		if (state == STATE_PREPARED && engine.isPlaying()) {
+			engine.stop();
 		}
+		state = STATE_IDLE;
 		// リソースの解放
-		mediaPlayer.release();
-		mediaPlayer = null;
+		engine.release();
+		engine = null;
 	}
 
 	/**
 	 * プレイヤーの停止出来るタイミングを加える
+	 * 範囲は開始時間順に保持し、重なる範囲は一つに統合する
 	 *
 	 * @param startTime
 	 *            サウンド開始から停止タイミングが開始するまでの時間(ミリ秒)
@@ -183,34 +632,19 @@ public class UltraPlayer implements OnCompletionListener {
 	 *            サウンド開始から停止タイミングが終了するまでの時間(ミリ秒)
 	 */
 	public void addTimeRange(long startTime, long endTime) {
-		TimePair timePair = new TimePair(startTime, endTime);
-		Log.v("addTP",
-				"(" + String.valueOf(timePair.start) + ","
-						+ String.valueOf(timePair.end) + ")");
-		timeRanges.add(timePair);
+		timeRanges.add(startTime, endTime);
+		rearmTimers();
 	}
 
 	/**
 	 * 停止可能時間の削除
 	 *
 	 * @param index
+	 *            開始時間順に並んだ範囲のインデックス
 	 */
 	public void removeTimeRange(int index) {
 		timeRanges.remove(index);
-	}
-
-	/**
-	 * 再生準備を行うメソッド
-	 */
-	private void prepare() {
-		try {
-			// 再生準備
-			mediaPlayer.prepare();
-		} catch (Exception e) {
-			// エラー内容のダイアログを表示
-			new AlertDialog.Builder(context).setTitle("error")
-					.setMessage("再生準備の失敗").setPositiveButton("OK", null).show();
-		}
+		rearmTimers();
 	}
 
 	// setter,getter====================================================================
@@ -230,13 +664,60 @@ public class UltraPlayer implements OnCompletionListener {
 		return this.stopCounter;
 	}
 
+	/**
+	 * 出来事を受け取るリスナーの登録
+	 *
+	 * @param listener
+	 */
+	public void addOnPlayerEventListener(
+			PlayerEventBus.OnPlayerEventListener listener) {
+		eventBus.addListener(listener);
+	}
+
+	/**
+	 * 出来事を受け取るリスナーの解除
+	 *
+	 * @param listener
+	 */
+	public void removeOnPlayerEventListener(
+			PlayerEventBus.OnPlayerEventListener listener) {
+		eventBus.removeListener(listener);
+	}
+
+	/**
+	 * 再生準備の状態
+	 *
+	 * @return STATE_IDLE,STATE_PREPARING,STATE_PREPARED,STATE_ERRORのいずれか
+	 */
+	public int getState() {
+		return state;
+	}
+
+	/**
+	 * 音源をセットしてから再生準備が完了するまでにかかった時間
+	 *
+	 * @return 時間(ミリ秒) 準備が完了していない場合は-1
+	 */
+	public long getTimeToReady() {
+		return timeToReady;
+	}
+
+	/**
+	 * 再生中かどうか
+	 *
+	 * @return 再生中の場合true
+	 */
+	public boolean isPlaying() {
+		return clock.isRunning();
+	}
+
 	/**
 	 * 停止可能時間のgetter
 	 *
-	 * @return
+	 * @return 開始時間順に並び、重なりを統合した範囲の読み取り専用リスト
 	 */
-	public ArrayList<TimePair> getTimeRange() {
-		return timeRanges;
+	public List<TimePair> getTimeRange() {
+		return timeRanges.asList();
 	}
 
 	/**
@@ -254,7 +735,18 @@ public class UltraPlayer implements OnCompletionListener {
 	 * @return 再生地点からの時間(ミリ秒)
 	 */
 	public int getCurrentPosition() {
-		return mediaPlayer.getCurrentPosition();
+		return (int) (getCurrentPositionNanos() / PlaybackClock.NANOS_PER_MILLI);
+	}
+
+	/**
+	 * 再生地点からの時間(ナノ秒)を取得
+	 * 時計による補間値を返し、一定間隔でのみプレイヤーと再同期する
+	 *
+	 * @return 再生地点からの時間(ナノ秒)
+	 */
+	public long getCurrentPositionNanos() {
+		resyncClock();
+		return clock.getPosition();
 	}
 
 	/**
@@ -263,24 +755,25 @@ public class UltraPlayer implements OnCompletionListener {
 	 * @return
 	 */
 	public int getDuration() {
-		return mediaPlayer.getDuration();
+		return (int) (clock.getDuration() / PlaybackClock.NANOS_PER_MILLI);
 	}
 
 	/**
-	 * start timeとend timeを管理するinnner class
+	 * start timeとend timeを保持する読み取り専用のclass
+	 * 判定にはTimeRangeIndexを使い、このclassは表示用に生成する
 	 *
 	 * @author maro
 	 *
 	 */
-	public class TimePair {
+	public static class TimePair {
 		/**
 		 * 開始時間
 		 */
-		private long start;
+		private final long start;
 		/**
 		 * 終了時間
 		 */
-		private long end;
+		private final long end;
 
 		/**
 		 * コンストラクタ
@@ -328,16 +821,108 @@ public class UltraPlayer implements OnCompletionListener {
 		}
 	}
 
+	/**
+	 * 準備完了まで待たせる操作
+	 *
+	 * @author maro
+	 *
+	 */
+	private static class PendingOp {
+		final int type;
+		final long arg;
+
+		PendingOp(int type, long arg) {
+			this.type = type;
+			this.arg = arg;
+		}
+	}
+
+	/**
+	 * 再生準備が完了した時のイベント
+	 * 曲の長さを時計にセットし、待たせていた操作を行う
+	 */
+	public void onPrepared(PlaybackEngine engine) {
+		if (state != STATE_PREPARING) {
+			return;
+		}
+		state = STATE_PREPARED;
+		// 曲の長さは準備完了時に一度だけ取得する
+		clock.setDuration(engine.getDuration());
+		clock.pause(0);
+		// resetでエンジンのループ設定が消えるのでセットし直す
+		applyLoopRegion();
+		// 準備完了までの時間を記録する
+		timeToReady = SystemClock.uptimeMillis() - prepareStartTime;
+		Utility.outputDebugLog("time to ready: " + timeToReady + "ms");
+		eventBus.publish(PlayerEventBus.EVENT_PREPARED, 0, (int) timeToReady);
+		rearmTimers();
+		replayPendingOps();
+	}
+
+	/**
+	 * 再生準備または再生に失敗した時のイベント
+	 */
+	public void onError(PlaybackEngine engine, String message) {
+		if (state == STATE_PREPARING && engineType == ENGINE_AUTO
+				&& engine == this.engine && engine instanceof PcmPlaybackEngine) {
+			// 変換できない形式だったので、待たせている操作はそのままにMediaPlayerで準備し直す
+			Utility.outputDebugLog("PCM engine failed: " + message);
+			selectEngine(false);
+			prepareMusic(context);
+			return;
+		}
+		state = STATE_ERROR;
+		pendingOps.clear();
+		clock.pause(0);
+		boundaryScheduler.cancel();
+		loopHandler.removeCallbacks(loopTask);
+		eventBus.publish(PlayerEventBus.EVENT_ERROR, 0, 0);
+		// エラー内容のダイアログを表示
+		new AlertDialog.Builder(context).setTitle("error")
+				.setMessage(message != null ? message : "再生準備の失敗")
+				.setPositiveButton("OK", null).show();
+	}
+
 	/**
 	 * メディアファイルの再生が終った時のイベント
+	 * ループ区間の終わりのタイマーより先に曲が終わった場合に呼ばれる
 	 */
-	public void onCompletion(MediaPlayer mediaplayer) {
+	public void onCompletion(PlaybackEngine engine) {
+		loopHandler.removeCallbacks(loopTask);
+		// 再スタートより先に停止回数を戻す
+		resetStopCounter(loopStart);
+
 		// スタート地点に戻る
-		mediaPlayer.seekTo(0);
+		engine.seekTo((int) loopStart);
 
 		// 再スタート
-		mediaPlayer.start();
+		engine.start();
+		clock.start(loopStart);
+
+		eventBus.publish(PlayerEventBus.EVENT_LOOPED, loopStart, 0);
+		rearmTimers();
+	}
 
-		stopCounter = 0;
+	/**
+	 * シークが完了した時のイベント
+	 * シーク中は再生位置が進まないため、完了時点を時計の基準にし直す
+	 */
+	public void onSeekComplete(PlaybackEngine engine) {
+		clock.seek(engine.getCurrentPosition());
+		rearmTimers();
+	}
+
+	/**
+	 * エンジンがループ区間の開始位置に折り返した時のイベント
+	 * 停止ボタンの判定で既に折り返しを済ませている場合は何もしない
+	 */
+	public void onLoop(PlaybackEngine engine) {
+		if (pendingEngineLoops > 0) {
+			pendingEngineLoops--;
+			return;
+		}
+		if (clock.isRunning()) {
+			loopBoundary();
+		}
 	}
 }
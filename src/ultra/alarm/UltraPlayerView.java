@@ -1,17 +1,17 @@
 package ultra.alarm;
 
-import java.util.ArrayList;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.List;
 
 import android.content.Context;
+import android.graphics.Color;
 import android.net.Uri;
 import android.os.Handler;
 import android.text.InputType;
 import android.text.SpannableStringBuilder;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.KeyEvent;
+import android.view.MotionEvent;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
@@ -29,7 +29,8 @@ import android.widget.TextView;
  * @author maro
  *
  */
-public class UltraPlayerView extends TableLayout {
+public class UltraPlayerView extends TableLayout implements
+		PlayerEventBus.OnPlayerEventListener {
 	/**
 	 * ActityのContext
 	 */
@@ -46,20 +47,82 @@ public class UltraPlayerView extends TableLayout {
 	private Handler handler;
 
 	/**
-	 * ハンドラーを制御するスレッド
+	 * 表示を更新する間隔(ミリ秒) 1フレーム分
 	 */
-	private ScheduledExecutorService srv;
+	private static final int FRAME_INTERVAL = 16;
 
 	/**
-	 * ハンドラー制御スレッドが動く時間(ミリ秒) 0.1秒間隔で取得
+	 * stopボタンを押した回数の表示の接頭辞
 	 */
-	private final int THREAD_TIME_RANGE = 100;
+	private static final String STOP_NUM_PREFIX = "停止ボタンを押した回数:";
+
+	/**
+	 * 表示の更新処理 使い回すために一つだけ生成する
+	 */
+	private final Runnable refreshTask = new Runnable() {
+		@Override
+		public void run() {
+			refreshScheduled = false;
+			refresh();
+			// 再生中の間だけ次のフレームでも更新する
+			if (player.isPlaying()) {
+				scheduleRefresh();
+			}
+		}
+	};
+
+	/**
+	 * 更新処理が予約されているか
+	 */
+	private boolean refreshScheduled;
+
+	/**
+	 * ウィンドウに表示されているか
+	 */
+	private boolean attached;
+
+	/**
+	 * 一時停止中か
+	 */
+	private boolean paused;
+
+	/**
+	 * 前回表示した再生位置(ミリ秒)
+	 */
+	private int shownPosition = -1;
+	/**
+	 * 前回シークバーに設定した曲の長さ(ミリ秒)
+	 */
+	private int shownDuration = -1;
+	/**
+	 * 前回表示したstopボタンを押した回数
+	 */
+	private int shownStopCounter = -1;
+
+	/**
+	 * 再生位置の表示用バッファ
+	 */
+	private final char[] positionChars = new char[11];
+	/**
+	 * stopボタンを押した回数の表示用バッファ
+	 */
+	private final char[] stopNumChars = new char[STOP_NUM_PREFIX.length() + 11];
 
 	/**
 	 * stopボタンを押した回数を表示するview
 	 */
 	private TextView g_stopNum;
 
+	/**
+	 * 停止ボタン 停止可能時間の間は強調表示する
+	 */
+	private Button g_stopBtn;
+
+	/**
+	 * 停止ボタンの通常の文字色
+	 */
+	private int stopBtnTextColor;
+
 	/**
 	 * 現在時間の表示用テキストエリア
 	 */
@@ -89,6 +152,18 @@ public class UltraPlayerView extends TableLayout {
 	 * @param context
 	 */
 	public UltraPlayerView(Context context) {
+		this(context, UltraPlayer.ENGINE_MEDIA_PLAYER);
+	}
+
+	/**
+	 * 再生エンジンを指定して初期化
+	 *
+	 * @param context
+	 * @param engineType
+	 *            UltraPlayer.ENGINE_MEDIA_PLAYER、UltraPlayer.ENGINE_PCM、
+	 *            UltraPlayer.ENGINE_AUTOのいずれか
+	 */
+	public UltraPlayerView(Context context, int engineType) {
 		super(context);
 		// Contextのインスタンス化
 		this.context = context;
@@ -97,43 +172,174 @@ public class UltraPlayerView extends TableLayout {
 		handler = new Handler();
 
 		// プレイヤーの初期化
-		player = new UltraPlayer(context);
+		player = new UltraPlayer(context, engineType);
+		// プレイヤーの出来事を受け取る
+		player.addOnPlayerEventListener(this);
 
 		// 停止可能時間表示ビューの初期化
 		timeRangeView = new TableLayout(context);
 
+		// 表示用バッファの接頭辞は一度だけ書き込む
+		STOP_NUM_PREFIX.getChars(0, STOP_NUM_PREFIX.length(), stopNumChars, 0);
+
 		// レイアウトの設定
 		layout();
+		showStopCounter(0);
+	}
 
-		// 定期的に起動するスレッドの生成
-		createScheduledExecutor();
+	/**
+	 * 現在再生時間を取得して、値が変わったGUIだけを変更する
+	 */
+	private void refresh() {
+		// シークバーの最大値をプレイヤーにセットされている曲のサイズにする
+		int duration = player.getDuration();
+		if (duration != shownDuration) {
+			shownDuration = duration;
+			g_seekbar.setMax(duration);
+		}
+		// 現在時間
+		int currentPosition = player.getCurrentPosition();
+		if (currentPosition != shownPosition) {
+			shownPosition = currentPosition;
+			// 現在位置を表示するテキストエリアに値をセット
+			int len = formatInt(positionChars, 0, currentPosition);
+			g_crtPos.setText(positionChars, 0, len);
+			// シークバーをセット
+			g_seekbar.setProgress(currentPosition);
+		}
 	}
 
 	/**
-	 * 定期的に起動するスケジューラの生成
-	 */
-	private void createScheduledExecutor() {
-		srv = Executors.newSingleThreadScheduledExecutor();
-		// 現在再生時間を取得して、各GUIを変更する
-		srv.scheduleAtFixedRate(new Runnable() {
-			public void run() {
-				handler.post(new Runnable() {
-					@Override
-					public void run() {
-						// 現在時間
-						int currentPosition = player.getCurrentPosition();
-						// シークバーの最大値をプレイヤーにセットされている曲のサイズにする
-						g_seekbar.setMax(player.getDuration());
-						// 現在位置を表示するテキストエリアに値をセット
-						g_crtPos.setText(String.valueOf(currentPosition));
-						// シークバーをセット
-						g_seekbar.setProgress(currentPosition);
-						// stopボタンを押した回数をviewにセット
-						g_stopNum.setText("停止ボタンを押した回数:"+player.getStopCounter());
-					}
-				});
-			}
-		}, 0, THREAD_TIME_RANGE, TimeUnit.MILLISECONDS);
+	 * stopボタンを押した回数をviewにセット
+	 *
+	 * @param stopCounter
+	 */
+	private void showStopCounter(int stopCounter) {
+		if (stopCounter != shownStopCounter) {
+			shownStopCounter = stopCounter;
+			int len = formatInt(stopNumChars, STOP_NUM_PREFIX.length(),
+					stopCounter);
+			g_stopNum.setText(stopNumChars, 0, len);
+		}
+	}
+
+	/**
+	 * プレイヤーの出来事を受け取る
+	 */
+	@Override
+	public void onPlayerEvent(int type, long position, int value) {
+		switch (type) {
+		case PlayerEventBus.EVENT_COUNTER_CHANGED:
+			showStopCounter(value);
+			break;
+		case PlayerEventBus.EVENT_PREPARED:
+			// 曲の長さが分かったのでシークバーを合わせる
+			refresh();
+			break;
+		case PlayerEventBus.EVENT_STARTED:
+		case PlayerEventBus.EVENT_PAUSED:
+		case PlayerEventBus.EVENT_SEEKED:
+		case PlayerEventBus.EVENT_LOOPED:
+			// 再生状態が変わったので表示を更新する
+			scheduleRefresh();
+			break;
+		case PlayerEventBus.EVENT_WINDOW_ENTERED:
+			// 停止可能時間の間は停止ボタンを強調する
+			g_stopBtn.setTextColor(Color.RED);
+			break;
+		case PlayerEventBus.EVENT_WINDOW_EXITED:
+			g_stopBtn.setTextColor(stopBtnTextColor);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * 次のフレームでの表示の更新を予約する
+	 * 表示されていない間や一時停止中は予約しない
+	 */
+	private void scheduleRefresh() {
+		if (refreshScheduled || !attached || paused) {
+			return;
+		}
+		refreshScheduled = true;
+		handler.postDelayed(refreshTask, FRAME_INTERVAL);
+	}
+
+	/**
+	 * 予約されている表示の更新を取り消す
+	 */
+	private void cancelRefresh() {
+		handler.removeCallbacks(refreshTask);
+		refreshScheduled = false;
+	}
+
+	/**
+	 * 整数を10進数の文字列としてバッファに書き込む
+	 *
+	 * @param buf
+	 *            書き込み先
+	 * @param offset
+	 *            書き込み開始位置
+	 * @param value
+	 *            書き込む値
+	 * @return 書き込んだ末尾の位置
+	 */
+	private static int formatInt(char[] buf, int offset, int value) {
+		int pos = offset;
+		long v = value;
+		if (v < 0) {
+			buf[pos++] = '-';
+			v = -v;
+		}
+		// 桁数を求めて後ろから書き込む
+		int digits = 1;
+		for (long p = 10; p <= v; p *= 10) {
+			digits++;
+		}
+		int end = pos + digits;
+		for (int i = end - 1; i >= pos; i--) {
+			buf[i] = (char) ('0' + (v % 10));
+			v /= 10;
+		}
+		return end;
+	}
+
+	/**
+	 * ウィンドウに追加された時に表示の更新を始める
+	 */
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		attached = true;
+		scheduleRefresh();
+	}
+
+	/**
+	 * ウィンドウから外された時に表示の更新を止める
+	 */
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		attached = false;
+		cancelRefresh();
+	}
+
+	/**
+	 * ActivityのonPauseで呼ぶ 表示の更新を止める
+	 */
+	public void pause() {
+		paused = true;
+		cancelRefresh();
+	}
+
+	/**
+	 * ActivityのonResumeで呼ぶ 表示の更新を再開する
+	 */
+	public void resume() {
+		paused = false;
+		scheduleRefresh();
 	}
 
 	/**
@@ -176,13 +382,51 @@ public class UltraPlayerView extends TableLayout {
 		player.setMusic(path);
 	}
 
+	/**
+	 * パスまたはuriの文字列で音楽をsetする
+	 *
+	 * @param location
+	 *            "://"を含む場合はuri、それ以外はパス
+	 */
+	public void setMusicSource(String location) {
+		if (location.indexOf("://") >= 0) {
+			setMusic(Uri.parse(location));
+		} else {
+			setMusic(location);
+		}
+	}
+
+	/**
+	 * 停止可能時間を開始時間と終了時間を交互に並べた配列で取得する
+	 *
+	 * @return
+	 */
+	public long[] getTimeRangeArray() {
+		List<UltraPlayer.TimePair> ranges = player.getTimeRange();
+		long[] windows = new long[ranges.size() * 2];
+		for (int i = 0; i < ranges.size(); i++) {
+			UltraPlayer.TimePair pair = ranges.get(i);
+			windows[i * 2] = pair.getStartTime();
+			windows[i * 2 + 1] = pair.getEndTime();
+		}
+		return windows;
+	}
+
+	/**
+	 * 表示しているプレイヤーを取得する
+	 *
+	 * @return
+	 */
+	public UltraPlayer getPlayer() {
+		return player;
+	}
+
 	/**
 	 * onDestroyメソッドで呼ぶ プレイヤーを破棄する
 	 */
 	public void destroy() {
-		// スレッドの破棄
-		// srv = null;
-		srv.shutdown();
+		// 表示の更新を止める
+		cancelRefresh();
 		// プレイヤーを終了させる
 		player.destroy();
 		// すべてのviewを破棄する
@@ -356,9 +600,10 @@ public class UltraPlayerView extends TableLayout {
 		llayout.addView(startBtn);
 
 		// 停止ボタンの生成
-		Button stopBtn = createStopButton();
+		g_stopBtn = createStopButton();
+		stopBtnTextColor = g_stopBtn.getCurrentTextColor();
 		// 行に停止ボタンを追加
-		llayout.addView(stopBtn);
+		llayout.addView(g_stopBtn);
 
 		// stopボタンを押した回数を表示するviewを初期化
 		g_stopNum = new TextView(context);
@@ -376,14 +621,14 @@ public class UltraPlayerView extends TableLayout {
 	 */
 	private void createTimeRangeTableRow() {
 		// 停止可能時間の取得
-		final ArrayList<UltraPlayer.TimePair> timeRangeList = player
+		final List<UltraPlayer.TimePair> timeRangeList = player
 				.getTimeRange();
 		Log.v("size", String.valueOf(timeRangeList.size()));
-		// 行の生成
-		TableRow tRow = new TableRow(context);
+		// 追加時に範囲が統合されるため、表示はすべて作り直す
+		timeRangeView.removeAllViews();
 		// 停止可能時間の表示
 		for (int i = 0; i < timeRangeList.size(); i++) {
-			tRow = new TableRow(context);
+			TableRow tRow = new TableRow(context);
 			// 停止可能時間表示用のテキストビュー
 			TextView text = new TextView(context);
 			// テキストのセット
@@ -398,7 +643,6 @@ public class UltraPlayerView extends TableLayout {
 			removeBtn.setText("削除");
 
 			final int index = i;
-			final TableRow f_tRow = tRow;
 			// ボタンのイベントリスナーを設定
 			removeBtn.setOnClickListener(new View.OnClickListener() {
 				@Override
@@ -406,18 +650,16 @@ public class UltraPlayerView extends TableLayout {
 					// プレイヤーのタイムレンジを削除
 					player.removeTimeRange(index);
 
-					// 行の削除
-					timeRangeView.removeView(f_tRow);
-					f_tRow.removeAllViews();
-					Log.v("size", String.valueOf(timeRangeList.size()));
+					// 行の作り直し
+					createTimeRangeTableRow();
 					Log.v("tnum", String.valueOf(timeRangeView.getChildCount()));
 				}
 			});
 			tRow.addView(removeBtn);
-		}
 
-		// タイムレンジ用レイアウトに追加
-		timeRangeView.addView(tRow);
+			// タイムレンジ用レイアウトに追加
+			timeRangeView.addView(tRow);
+		}
 
 		// 再描画
 		timeRangeView.invalidate();
@@ -460,11 +702,32 @@ public class UltraPlayerView extends TableLayout {
 		button.setText("停止");
 
 		// ボタンのイベントリスナーを設定
-		button.setOnClickListener(new View.OnClickListener() {
+		// 判定はクリック処理の実行時ではなく、指が触れたイベントの時刻で行う
+		button.setOnTouchListener(new View.OnTouchListener() {
 			@Override
-			public void onClick(View v) {
-				// プレイヤーを再生
-				player.stopAction();
+			public boolean onTouch(View v, MotionEvent event) {
+				if (event.getAction() == MotionEvent.ACTION_DOWN) {
+					// プレイヤーの停止判定
+					player.stopAction(event.getEventTime());
+				}
+				// 押下状態の表示はボタンに任せる
+				return false;
+			}
+		});
+		// ハードウェアキーで押された場合もキーイベントの時刻で判定する
+		button.setOnKeyListener(new View.OnKeyListener() {
+			@Override
+			public boolean onKey(View v, int keyCode, KeyEvent event) {
+				if (keyCode != KeyEvent.KEYCODE_DPAD_CENTER
+						&& keyCode != KeyEvent.KEYCODE_ENTER) {
+					return false;
+				}
+				if (event.getAction() == KeyEvent.ACTION_DOWN
+						&& event.getRepeatCount() == 0) {
+					// プレイヤーの停止判定
+					player.stopAction(event.getEventTime());
+				}
+				return true;
 			}
 		});
 
@@ -0,0 +1,143 @@
+package ultra.alarm;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * 停止可能時間の境界を予測して通知するクラス
+ * 再生位置は直線的に進むため、次に停止可能時間に入る・出る時刻を求めて
+ * その時刻にだけタイマーを一つ仕掛ける
+ * シーク・ループ・停止可能時間の変更の時はrearm()で仕掛け直す
+ *
+ * @author maro
+ *
+ */
+public class WindowBoundaryScheduler {
+	/**
+	 * 停止可能時間の集合
+	 */
+	private final TimeRangeIndex timeRanges;
+	/**
+	 * 再生位置を補間する時計
+	 */
+	private final PlaybackClock clock;
+	/**
+	 * 境界の通知先
+	 */
+	private final PlayerEventBus eventBus;
+	/**
+	 * メインスレッドのハンドラー
+	 */
+	private final Handler handler = new Handler(Looper.getMainLooper());
+
+	/**
+	 * 現在入っている停止可能時間のインデックス 入っていない場合は-1
+	 */
+	private int activeIndex = -1;
+
+	/**
+	 * 境界に達した時の処理 使い回すために一つだけ生成する
+	 */
+	private final Runnable boundaryTask = new Runnable() {
+		@Override
+		public void run() {
+			rearm();
+		}
+	};
+
+	/**
+	 * コンストラクタ
+	 *
+	 * @param timeRanges
+	 *            停止可能時間の集合
+	 * @param clock
+	 *            再生位置を補間する時計
+	 * @param eventBus
+	 *            境界の通知先
+	 */
+	public WindowBoundaryScheduler(TimeRangeIndex timeRanges,
+			PlaybackClock clock, PlayerEventBus eventBus) {
+		this.timeRanges = timeRanges;
+		this.clock = clock;
+		this.eventBus = eventBus;
+	}
+
+	/**
+	 * 現在の再生位置で停止可能時間への出入りを通知し、次の境界にタイマーを仕掛け直す
+	 * メインスレッドから呼ぶ
+	 */
+	public void rearm() {
+		handler.removeCallbacks(boundaryTask);
+
+		long position = clock.getPosition();
+		long positionMillis = position / PlaybackClock.NANOS_PER_MILLI;
+		int index = timeRanges.find(positionMillis);
+		if (index != activeIndex) {
+			if (activeIndex >= 0) {
+				eventBus.publish(PlayerEventBus.EVENT_WINDOW_EXITED,
+						positionMillis, activeIndex);
+			}
+			if (index >= 0) {
+				eventBus.publish(PlayerEventBus.EVENT_WINDOW_ENTERED,
+						positionMillis, index);
+			}
+			activeIndex = index;
+		}
+
+		// 停止中は位置が進まないので仕掛けない
+		if (!clock.isRunning()) {
+			return;
+		}
+		long boundary = nextBoundary(positionMillis, index);
+		if (boundary < 0) {
+			return;
+		}
+		// 早く起きすぎないように切り上げる 早すぎた場合は再計算で仕掛け直される
+		long delayNanos = boundary * PlaybackClock.NANOS_PER_MILLI - position;
+		long delayMillis = (delayNanos + PlaybackClock.NANOS_PER_MILLI - 1)
+				/ PlaybackClock.NANOS_PER_MILLI;
+		if (delayMillis < 1) {
+			delayMillis = 1;
+		}
+		handler.postAtTime(boundaryTask, SystemClock.uptimeMillis()
+				+ delayMillis);
+	}
+
+	/**
+	 * タイマーを取り消す
+	 */
+	public void cancel() {
+		handler.removeCallbacks(boundaryTask);
+	}
+
+	/**
+	 * 現在入っている停止可能時間のインデックス
+	 *
+	 * @return 入っていない場合は-1
+	 */
+	public int getActiveIndex() {
+		return activeIndex;
+	}
+
+	/**
+	 * 次の境界の再生位置を求める
+	 *
+	 * @param positionMillis
+	 *            現在の再生位置(ミリ秒)
+	 * @param index
+	 *            現在入っている停止可能時間のインデックス
+	 * @return 次の境界の再生位置(ミリ秒) 境界が無い場合は-1
+	 */
+	private long nextBoundary(long positionMillis, int index) {
+		if (index >= 0) {
+			// 終了時間までは範囲内なので、その直後に出る
+			return timeRanges.getEnd(index) + 1;
+		}
+		int next = timeRanges.floor(positionMillis) + 1;
+		if (next < timeRanges.size()) {
+			return timeRanges.getStart(next);
+		}
+		return -1;
+	}
+}
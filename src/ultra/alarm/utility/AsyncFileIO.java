@@ -0,0 +1,303 @@
+package ultra.alarm.utility;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Utilityのファイル操作をバックグラウンドで行うクラス
+ * 結果は呼び出したスレッドのLooperで受け取る
+ * 同じファイルへの操作は受け付けた順に一つずつ行うので、書き込みの後の読み込みは書いた内容を読む
+ * 書き込みを受け付けた時点でdata2fileLaterの保存待ちの内容は古くなるので捨てる
+ *
+ * @author maro
+ *
+ */
+public class AsyncFileIO {
+	/**
+	 * 同時に動かすスレッドの数
+	 */
+	private static final int THREADS = 2;
+	/**
+	 * 実行を待たせておける操作の数
+	 */
+	private static final int QUEUE_CAPACITY = 64;
+
+	/**
+	 * ファイル操作用のスレッドプール
+	 */
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+			THREADS, THREADS, 30, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(QUEUE_CAPACITY),
+			new ThreadFactory() {
+				private int count;
+
+				@Override
+				public synchronized Thread newThread(final Runnable r) {
+					return new Thread("AsyncFileIO-" + (++count)) {
+						@Override
+						public void run() {
+							Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+							r.run();
+						}
+					};
+				}
+			});
+
+	/**
+	 * ファイルごとの実行待ちの操作 実行中の操作があるファイルだけが入る
+	 */
+	private static final HashMap<String, LinkedList<Operation<?>>> queues = new HashMap<String, LinkedList<Operation<?>>>();
+
+	/**
+	 * 結果を受け取るコールバック
+	 *
+	 * @author maro
+	 *
+	 * @param <T>
+	 *            結果の型
+	 */
+	public interface Callback<T> {
+		/**
+		 * 操作が成功した
+		 *
+		 * @param result
+		 */
+		public void onResult(T result);
+
+		/**
+		 * 操作に失敗した
+		 *
+		 * @param e
+		 */
+		public void onError(IOException e);
+	}
+
+	/**
+	 * 受け付けた操作 取り消しに使う
+	 *
+	 * @author maro
+	 *
+	 */
+	public static class Request {
+		private volatile boolean cancelled;
+
+		/**
+		 * 操作を取り消す
+		 * 始まっていない操作は行わず、始まっている操作は結果を通知しない
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+
+	/**
+	 * バックグラウンドで行う操作
+	 *
+	 * @param <T>
+	 *            結果の型
+	 */
+	private static abstract class Operation<T> extends Request implements
+			Runnable {
+		/**
+		 * 操作するファイルの絶対パス
+		 */
+		final String key;
+		/**
+		 * 結果を届けるハンドラー
+		 */
+		private final Handler handler;
+		private final Callback<T> callback;
+
+		Operation(File file, Callback<T> callback) {
+			this.key = file.getAbsolutePath();
+			this.callback = callback;
+			Looper looper = Looper.myLooper();
+			this.handler = new Handler(looper != null ? looper : Looper
+					.getMainLooper());
+		}
+
+		/**
+		 * ファイル操作の本体 バックグラウンドのスレッドで呼ばれる
+		 *
+		 * @return
+		 * @throws IOException
+		 */
+		abstract T execute() throws IOException;
+
+		@Override
+		public void run() {
+			try {
+				if (isCancelled()) {
+					return;
+				}
+				T result = null;
+				IOException error = null;
+				try {
+					result = execute();
+				} catch (IOException e) {
+					error = e;
+				}
+				deliver(result, error);
+			} finally {
+				finished(this);
+			}
+		}
+
+		/**
+		 * 結果を呼び出し元のLooperで通知する
+		 *
+		 * @param result
+		 * @param error
+		 *            失敗した場合は例外 成功した場合はnull
+		 */
+		void deliver(final T result, final IOException error) {
+			if (callback == null) {
+				return;
+			}
+			handler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (isCancelled()) {
+						return;
+					}
+					if (error != null) {
+						callback.onError(error);
+					} else {
+						callback.onResult(result);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * 操作を受け付ける 同じファイルの操作が実行中なら、その後に回す
+	 *
+	 * @param op
+	 * @return
+	 */
+	private static Request enqueue(Operation<?> op) {
+		synchronized (queues) {
+			LinkedList<Operation<?>> queue = queues.get(op.key);
+			if (queue != null) {
+				queue.add(op);
+				return op;
+			}
+			queues.put(op.key, new LinkedList<Operation<?>>());
+		}
+		submit(op);
+		return op;
+	}
+
+	/**
+	 * 操作が終わったので、同じファイルの次の操作を始める
+	 *
+	 * @param op
+	 */
+	private static void finished(Operation<?> op) {
+		Operation<?> next;
+		synchronized (queues) {
+			LinkedList<Operation<?>> queue = queues.get(op.key);
+			next = queue != null ? queue.poll() : null;
+			if (next == null) {
+				queues.remove(op.key);
+				return;
+			}
+		}
+		submit(next);
+	}
+
+	/**
+	 * スレッドプールに渡す 待ちが一杯の場合は失敗を通知する
+	 *
+	 * @param op
+	 */
+	private static void submit(Operation<?> op) {
+		try {
+			executor.execute(op);
+		} catch (RejectedExecutionException e) {
+			op.deliver(null, new IOException("too many pending file operations"));
+			finished(op);
+		}
+	}
+
+	// 操作==================================================================
+
+	/**
+	 * Utility.file2dataをバックグラウンドで行う
+	 */
+	public static Request file2data(final Context context,
+			final String fileName, Callback<byte[]> callback) {
+		return enqueue(new Operation<byte[]>(Utility.resolveFile(context, fileName),
+				callback) {
+			@Override
+			byte[] execute() throws IOException {
+				return Utility.file2data(context, fileName);
+			}
+		});
+	}
+
+	/**
+	 * Utility.file2strをバックグラウンドで行う
+	 */
+	public static Request file2str(final Context context,
+			final String fileName, Callback<String> callback) {
+		return enqueue(new Operation<String>(Utility.resolveFile(context, fileName),
+				callback) {
+			@Override
+			String execute() throws IOException {
+				return Utility.file2str(context, fileName);
+			}
+		});
+	}
+
+	/**
+	 * Utility.data2fileをバックグラウンドで行う
+	 */
+	public static Request data2file(final Context context, final byte[] data,
+			final String fileName, Callback<Void> callback) {
+		final File file = Utility.resolveFile(context, fileName);
+		Utility.discardPendingWrite(file);
+		return enqueue(new Operation<Void>(file, callback) {
+			@Override
+			Void execute() throws IOException {
+				Utility.awaitPendingWrite(file);
+				Utility.data2file(context, data, fileName);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Utility.str2fileをバックグラウンドで行う
+	 */
+	public static Request str2file(final Context context, final String str,
+			final String fileName, Callback<Void> callback) {
+		final File file = Utility.resolveFile(context, fileName);
+		Utility.discardPendingWrite(file);
+		return enqueue(new Operation<Void>(file, callback) {
+			@Override
+			Void execute() throws IOException {
+				Utility.awaitPendingWrite(file);
+				Utility.str2file(context, str, fileName);
+				return null;
+			}
+		});
+	}
+}
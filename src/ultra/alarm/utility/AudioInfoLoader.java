@@ -0,0 +1,274 @@
+package ultra.alarm.utility;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.MediaMetadataRetriever;
+import android.os.Handler;
+import android.os.Process;
+
+/**
+ * 音声ファイルのタイトル、再生時間、ジャケット画像をバックグラウンドで読むクラス
+ * 画像はサムネイルの大きさで読み込み、結果は大きさの合計に上限のあるキャッシュに使った順で持つ
+ * キャッシュはUIスレッドからだけ使う
+ *
+ * @author maro
+ *
+ */
+public class AudioInfoLoader {
+	/**
+	 * キャッシュの大きさの上限（バイト）
+	 */
+	private static final int MAX_CACHE_BYTES = 2 * 1024 * 1024;
+	/**
+	 * 画像以外の1件あたりの大きさの見積もり
+	 */
+	private static final int INFO_OVERHEAD = 64;
+
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+			2, 2, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+			new ThreadFactory() {
+				private int count;
+
+				@Override
+				public synchronized Thread newThread(final Runnable r) {
+					return new Thread("AudioInfoLoader-" + (++count)) {
+						@Override
+						public void run() {
+							Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+							r.run();
+						}
+					};
+				}
+			});
+
+	static {
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * 読んだ情報 パス→情報
+	 */
+	private final LinkedHashMap<String, Info> cache = new LinkedHashMap<String, Info>(
+			16, 0.75f, true);
+	/**
+	 * キャッシュの大きさの合計
+	 */
+	private int cacheBytes;
+	/**
+	 * サムネイルの一辺（ピクセル）
+	 */
+	private final int thumbnailSize;
+	private final Handler handler = new Handler();
+
+	/**
+	 * 音声ファイルの情報
+	 *
+	 * @author maro
+	 *
+	 */
+	public static class Info {
+		/**
+		 * タイトル 無ければnull
+		 */
+		public final String title;
+		/**
+		 * 再生時間（ミリ秒） 分からない場合は0
+		 */
+		public final int duration;
+		/**
+		 * ジャケット画像 無ければnull
+		 */
+		public final Bitmap art;
+		final int bytes;
+
+		Info(String title, int duration, Bitmap art) {
+			this.title = title;
+			this.duration = duration;
+			this.art = art;
+			int size = INFO_OVERHEAD;
+			if (title != null) {
+				size += title.length() * 2;
+			}
+			if (art != null) {
+				size += art.getRowBytes() * art.getHeight();
+			}
+			this.bytes = size;
+		}
+	}
+
+	/**
+	 * 読み終わった時のコールバック
+	 *
+	 * @author maro
+	 *
+	 */
+	public interface Callback {
+		/**
+		 * UIスレッドで呼ばれる
+		 *
+		 * @param path
+		 * @param info
+		 */
+		public void onLoaded(String path, Info info);
+	}
+
+	/**
+	 * @param thumbnailSize
+	 *            サムネイルの一辺（ピクセル）
+	 */
+	public AudioInfoLoader(int thumbnailSize) {
+		this.thumbnailSize = thumbnailSize;
+	}
+
+	/**
+	 * キャッシュにある情報
+	 *
+	 * @param path
+	 * @return 無ければnull
+	 */
+	public Info get(String path) {
+		return cache.get(path);
+	}
+
+	/**
+	 * バックグラウンドで読む 結果はキャッシュに入れてからコールバックで通知する
+	 *
+	 * @param path
+	 * @param callback
+	 * @return 取り消しに使う
+	 */
+	public Future<?> load(final String path, final Callback callback) {
+		return executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				if (Thread.currentThread().isInterrupted()) {
+					return;
+				}
+				final Info info = read(path);
+				if (Thread.currentThread().isInterrupted()) {
+					return;
+				}
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						put(path, info);
+						callback.onLoaded(path, info);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * キャッシュを空にする
+	 */
+	public void clear() {
+		cache.clear();
+		cacheBytes = 0;
+	}
+
+	/**
+	 * キャッシュに入れ、上限を超えたら古いものから捨てる
+	 *
+	 * @param path
+	 * @param info
+	 */
+	private void put(String path, Info info) {
+		Info old = cache.put(path, info);
+		if (old != null) {
+			cacheBytes -= old.bytes;
+		}
+		cacheBytes += info.bytes;
+		Iterator<Map.Entry<String, Info>> it = cache.entrySet().iterator();
+		while (cacheBytes > MAX_CACHE_BYTES && it.hasNext()) {
+			cacheBytes -= it.next().getValue().bytes;
+			it.remove();
+		}
+	}
+
+	/**
+	 * ファイルから読む バックグラウンドのスレッドで呼ばれる
+	 *
+	 * @param path
+	 * @return
+	 */
+	private Info read(String path) {
+		MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+		try {
+			retriever.setDataSource(path);
+			String title = retriever
+					.extractMetadata(MediaMetadataRetriever.METADATA_KEY_TITLE);
+			int duration = 0;
+			String value = retriever
+					.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+			if (value != null) {
+				duration = Integer.parseInt(value);
+			}
+			Bitmap art = null;
+			if (!Thread.currentThread().isInterrupted()) {
+				art = decodeThumbnail(retriever.getEmbeddedPicture());
+			}
+			return new Info(title, duration, art);
+		} catch (RuntimeException e) {
+			// 読めないファイル
+			return new Info(null, 0, null);
+		} finally {
+			retriever.release();
+		}
+	}
+
+	/**
+	 * 画像をサムネイルの大きさで読み込む
+	 * 間引いて読み込んでから、まだ大きければ短い辺がサムネイルの大きさになるまで縦横比を保って縮める
+	 * 正方形への切り抜きは表示するImageViewが行う
+	 *
+	 * @param data
+	 * @return
+	 */
+	private Bitmap decodeThumbnail(byte[] data) {
+		if (data == null) {
+			return null;
+		}
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data, 0, data.length, options);
+		if (options.outWidth <= 0 || options.outHeight <= 0) {
+			return null;
+		}
+		int sample = 1;
+		while (options.outWidth / (sample * 2) >= thumbnailSize
+				&& options.outHeight / (sample * 2) >= thumbnailSize) {
+			sample *= 2;
+		}
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = sample;
+		options.inPreferredConfig = Bitmap.Config.RGB_565;
+		Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length,
+				options);
+		if (bitmap == null) {
+			return null;
+		}
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		int shorter = Math.min(width, height);
+		if (shorter > thumbnailSize) {
+			Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.max(1,
+					width * thumbnailSize / shorter), Math.max(1, height
+					* thumbnailSize / shorter), true);
+			if (scaled != bitmap) {
+				bitmap.recycle();
+			}
+			bitmap = scaled;
+		}
+		return bitmap;
+	}
+}
@@ -0,0 +1,242 @@
+package ultra.alarm.utility;
+
+import java.io.File;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Process;
+
+/**
+ * ディレクトリの一覧のキャッシュ
+ * 使った順に並べ、合計の大きさが上限を超えたら古いものから捨てる
+ * ディレクトリの更新日時が変わっていたら取得し直す
+ *
+ * @author maro
+ *
+ */
+public class DirectoryCache {
+	/**
+	 * キャッシュの大きさの上限（バイト）
+	 */
+	private static final int MAX_BYTES = 512 * 1024;
+	/**
+	 * 一つのディレクトリから先読みするサブディレクトリの数
+	 */
+	private static final int PREFETCH_LIMIT = 8;
+	/**
+	 * 1件あたりの大きさの見積もり 名前以外の分
+	 */
+	private static final int ENTRY_OVERHEAD = 96;
+
+	private static DirectoryCache instance;
+
+	/**
+	 * 一覧 キーはディレクトリの絶対パス
+	 */
+	private final LinkedHashMap<String, Listing> listings = new LinkedHashMap<String, Listing>(
+			16, 0.75f, true);
+	/**
+	 * キャッシュしている一覧の大きさの合計
+	 */
+	private int totalBytes;
+
+	/**
+	 * 先読み用のスレッド 新しい先読みが来たら待っているものは捨てる
+	 */
+	private final ThreadPoolExecutor prefetcher = new ThreadPoolExecutor(1,
+			1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					return new Thread("DirectoryCache-prefetch") {
+						@Override
+						public void run() {
+							Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+							r.run();
+						}
+					};
+				}
+			});
+
+	/**
+	 * ディレクトリの一覧
+	 *
+	 * @author maro
+	 *
+	 */
+	public static class Listing {
+		/**
+		 * 取得した時のディレクトリの更新日時
+		 */
+		public final long lastModified;
+		/**
+		 * ファイル
+		 */
+		public final FileEntry[] entries;
+		/**
+		 * 大きさの見積もり 名前と並べ替えのキーの分を数える
+		 */
+		final int bytes;
+
+		Listing(long lastModified, FileEntry[] entries) {
+			this.lastModified = lastModified;
+			this.entries = entries;
+			int size = ENTRY_OVERHEAD;
+			for (FileEntry entry : entries) {
+				size += ENTRY_OVERHEAD + entry.name.length() * 8;
+			}
+			this.bytes = size;
+		}
+	}
+
+	private DirectoryCache() {
+		prefetcher.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * アプリ全体で共有するキャッシュ
+	 *
+	 * @return
+	 */
+	public static synchronized DirectoryCache getInstance() {
+		if (instance == null) {
+			instance = new DirectoryCache();
+		}
+		return instance;
+	}
+
+	/**
+	 * キャッシュしている一覧を取得する
+	 *
+	 * @param dir
+	 * @return キャッシュに無いか、ディレクトリが更新されていた場合はnull
+	 */
+	public Listing get(File dir) {
+		long lastModified = dir.lastModified();
+		String key = dir.getAbsolutePath();
+		synchronized (this) {
+			Listing listing = listings.get(key);
+			if (listing == null) {
+				return null;
+			}
+			if (listing.lastModified != lastModified) {
+				// 更新されたので捨てる
+				listings.remove(key);
+				totalBytes -= listing.bytes;
+				return null;
+			}
+			return listing;
+		}
+	}
+
+	/**
+	 * 一覧を登録する
+	 *
+	 * @param dir
+	 * @param lastModified
+	 *            一覧を取得する前のディレクトリの更新日時
+	 * @param entries
+	 * @return 登録した一覧
+	 */
+	public Listing put(File dir, long lastModified, FileEntry[] entries) {
+		Listing listing = new Listing(lastModified, entries);
+		if (listing.bytes > MAX_BYTES) {
+			// 大きすぎるものはキャッシュしない
+			return listing;
+		}
+		synchronized (this) {
+			Listing old = listings.put(dir.getAbsolutePath(), listing);
+			if (old != null) {
+				totalBytes -= old.bytes;
+			}
+			totalBytes += listing.bytes;
+			trim(MAX_BYTES);
+		}
+		return listing;
+	}
+
+	/**
+	 * ディレクトリの一覧を取得してキャッシュに登録する
+	 * 名前から見積もった大きさがキャッシュに入らない場合は、ファイルを調べずにやめる
+	 *
+	 * @param dir
+	 * @return 取得できなかった場合とキャッシュに入らない場合はnull
+	 */
+	public Listing load(File dir) {
+		long lastModified = dir.lastModified();
+		String[] names = dir.list();
+		if (names == null) {
+			return null;
+		}
+		// Listingと同じ見積もり 調べるのは時間がかかるので先に確かめる
+		long bytes = ENTRY_OVERHEAD + (long) names.length * ENTRY_OVERHEAD;
+		for (int i = 0; i < names.length && bytes <= MAX_BYTES; i++) {
+			bytes += names[i].length() * 8;
+		}
+		if (bytes > MAX_BYTES) {
+			return null;
+		}
+		Collator collator = Collator.getInstance();
+		FileEntry[] entries = new FileEntry[names.length];
+		for (int i = 0; i < names.length; i++) {
+			entries[i] = FileEntry.stat(dir, names[i], collator);
+		}
+		return put(dir, lastModified, entries);
+	}
+
+	/**
+	 * 大きさの合計がmaxBytes以下になるまで古いものから捨てる
+	 *
+	 * @param maxBytes
+	 */
+	public synchronized void trim(int maxBytes) {
+		Iterator<Map.Entry<String, Listing>> it = listings.entrySet()
+				.iterator();
+		while (totalBytes > maxBytes && it.hasNext()) {
+			totalBytes -= it.next().getValue().bytes;
+			it.remove();
+		}
+	}
+
+	/**
+	 * サブディレクトリの一覧をバックグラウンドで先読みする
+	 * 前に頼んだ先読みでまだ始まっていないものは取り消す
+	 *
+	 * @param dir
+	 * @param listing
+	 *            dirの一覧
+	 */
+	public void prefetchChildren(File dir, Listing listing) {
+		final ArrayList<File> targets = new ArrayList<File>();
+		for (int i = 0; i < listing.entries.length
+				&& targets.size() < PREFETCH_LIMIT; i++) {
+			if (listing.entries[i].isDirectory) {
+				File child = listing.entries[i].getFile(dir);
+				synchronized (this) {
+					if (listings.containsKey(child.getAbsolutePath())) {
+						continue;
+					}
+				}
+				targets.add(child);
+			}
+		}
+		prefetcher.getQueue().clear();
+		for (final File child : targets) {
+			prefetcher.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (child.canRead() && get(child) == null) {
+						load(child);
+					}
+				}
+			});
+		}
+	}
+}
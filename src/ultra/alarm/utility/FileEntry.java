@@ -0,0 +1,89 @@
+package ultra.alarm.utility;
+
+import java.io.File;
+import java.text.CollationKey;
+import java.text.Collator;
+
+/**
+ * 一覧の1件分のファイルの情報
+ * 一覧の取得時に一度だけ調べ、表示や並べ替えではファイルシステムを見ない
+ *
+ * @author maro
+ *
+ */
+public class FileEntry {
+	/**
+	 * ファイル名
+	 */
+	public final String name;
+	/**
+	 * 表示名 ディレクトリは末尾に"/"を付ける
+	 */
+	public final String label;
+	public final boolean isDirectory;
+	/**
+	 * 大きさ ディレクトリは0
+	 */
+	public final long size;
+	public final long lastModified;
+	/**
+	 * 並べ替え用のキー
+	 */
+	final CollationKey collationKey;
+
+	private FileEntry(String name, boolean isDirectory, long size,
+			long lastModified, CollationKey collationKey) {
+		this.name = name;
+		this.label = isDirectory ? name + "/" : name;
+		this.isDirectory = isDirectory;
+		this.size = size;
+		this.lastModified = lastModified;
+		this.collationKey = collationKey;
+	}
+
+	/**
+	 * ファイルを調べる
+	 *
+	 * @param dir
+	 *            ファイルのあるディレクトリ
+	 * @param name
+	 *            ファイル名
+	 * @param collator
+	 *            並べ替えのキーを作るCollator スレッドごとに用意すること
+	 * @return
+	 */
+	public static FileEntry stat(File dir, String name, Collator collator) {
+		File file = new File(dir, name);
+		boolean isDirectory = file.isDirectory();
+		return new FileEntry(name, isDirectory, isDirectory ? 0 : file
+				.length(), file.lastModified(), collator.getCollationKey(name));
+	}
+
+	/**
+	 * ファイル
+	 *
+	 * @param dir
+	 *            ファイルのあるディレクトリ
+	 * @return
+	 */
+	public File getFile(File dir) {
+		return new File(dir, name);
+	}
+
+	/**
+	 * 並び順の比較 ディレクトリを先にし、その中は名前順
+	 *
+	 * @param other
+	 * @return
+	 */
+	public int compareTo(FileEntry other) {
+		if (isDirectory != other.isDirectory) {
+			return isDirectory ? -1 : 1;
+		}
+		int ret = collationKey.compareTo(other.collationKey);
+		if (ret == 0) {
+			ret = name.compareTo(other.name);
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,590 @@
+package ultra.alarm.utility;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import ultra.alarm.R;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+/**
+ * FileListView用のアダプタ
+ * ディレクトリを先に名前順で並べ、絞り込みの文字列に合うものだけを表示する
+ * 並び順と表示する行は番号の配列で持ち、表示や絞り込みでファイルを調べ直さない
+ * 音声ファイルの行には、表示された時にタイトル、再生時間、ジャケット画像を読んで出す
+ *
+ * @author maro
+ *
+ */
+public class FileListAdapter extends BaseAdapter {
+	/**
+	 * サムネイルの一辺（dip）
+	 */
+	private static final int THUMBNAIL_DIP = 48;
+	/**
+	 * 絞り込みの結果が全体のこの分の1より少なければ、全体をなめずに結果だけを並べ替える
+	 */
+	private static final int SMALL_RESULT_RATIO = 16;
+
+	private final LayoutInflater inflater;
+	/**
+	 * 音声ファイルの情報を読むクラス
+	 */
+	private final AudioInfoLoader loader;
+	/**
+	 * 表示しているディレクトリ
+	 */
+	private File directory;
+	/**
+	 * フリング中か フリング中は音声ファイルの情報を読み始めない
+	 */
+	private boolean isFlinging;
+
+	/**
+	 * 追加された順のファイル 番号はNameIndexの番号と同じ 消したものはnull
+	 */
+	private final ArrayList<FileEntry> entries = new ArrayList<FileEntry>();
+	/**
+	 * ファイル名→番号
+	 */
+	private final HashMap<String, Integer> idsByName = new HashMap<String, Integer>();
+	/**
+	 * entriesの中の消したものの数
+	 */
+	private int removedCount;
+	/**
+	 * 絞り込み用の索引
+	 */
+	private final NameIndex nameIndex = new NameIndex();
+
+	/**
+	 * 全てのファイルの番号を並び順にしたもの
+	 */
+	private int[] sorted = new int[64];
+	private int sortedCount;
+	/**
+	 * 表示するファイルの番号を並び順にしたもの
+	 */
+	private int[] visible = new int[64];
+	private int visibleCount;
+	/**
+	 * 絞り込み用の作業領域
+	 */
+	private boolean[] matched = new boolean[64];
+	/**
+	 * 並べ替え用の作業領域
+	 */
+	private int[] work = new int[64];
+
+	/**
+	 * 絞り込みの文字列 空なら全て表示する
+	 */
+	private String filter = "";
+	/**
+	 * 表示するファイルが無い時に出す文字列 nullなら何も出さない
+	 */
+	private String emptyMessage;
+
+	/**
+	 * 行のビューの部品
+	 */
+	private static class ViewHolder {
+		ImageView icon;
+		TextView title;
+		TextView detail;
+		/**
+		 * 表示しているファイルのパス 音声ファイル以外はnull
+		 */
+		String path;
+		/**
+		 * 実行中の読み込み
+		 */
+		Future<?> task;
+	}
+
+	public FileListAdapter(Context context) {
+		inflater = (LayoutInflater) context
+				.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+		float density = context.getResources().getDisplayMetrics().density;
+		loader = new AudioInfoLoader((int) (THUMBNAIL_DIP * density + 0.5f));
+	}
+
+	/**
+	 * 表示しているディレクトリ 行のファイルのパスを作るのに使う
+	 *
+	 * @param dir
+	 */
+	public void setDirectory(File dir) {
+		directory = dir;
+	}
+
+	/**
+	 * フリング中かを設定する 止まったら表示中の行の情報を読み始める
+	 *
+	 * @param flinging
+	 */
+	public void setFlinging(boolean flinging) {
+		if (isFlinging == flinging) {
+			return;
+		}
+		isFlinging = flinging;
+		if (!flinging) {
+			notifyDataSetChanged();
+		}
+	}
+
+	/**
+	 * メモリが足りない時に呼ぶ 読んだ情報を捨てる
+	 */
+	public void trimMemory() {
+		loader.clear();
+	}
+
+	/**
+	 * ファイルを追加する 同じ名前のものがあれば置き換える
+	 *
+	 * @param batch
+	 */
+	public void addAll(List<FileEntry> batch) {
+		int n = batch.size();
+		if (n == 0) {
+			return;
+		}
+		ArrayList<String> replaced = null;
+		for (int i = 0; i < n; i++) {
+			String name = batch.get(i).name;
+			if (idsByName.containsKey(name)) {
+				if (replaced == null) {
+					replaced = new ArrayList<String>();
+				}
+				replaced.add(name);
+			}
+		}
+		if (replaced != null) {
+			removeNames(replaced);
+		}
+
+		int first = entries.size();
+		for (int i = 0; i < n; i++) {
+			FileEntry entry = batch.get(i);
+			idsByName.put(entry.name, entries.size());
+			entries.add(entry);
+			nameIndex.add(entry.name);
+		}
+
+		// 追加分を並べてから今までの並びとマージする
+		int total = sortedCount + n;
+		sorted = ensure(sorted, total);
+		work = ensure(work, total);
+		int[] added = new int[n];
+		for (int i = 0; i < n; i++) {
+			added[i] = first + i;
+		}
+		sort(added, n);
+		System.arraycopy(sorted, 0, work, 0, sortedCount);
+		int a = 0;
+		int b = 0;
+		int out = 0;
+		while (a < sortedCount && b < n) {
+			if (compare(work[a], added[b]) <= 0) {
+				sorted[out++] = work[a++];
+			} else {
+				sorted[out++] = added[b++];
+			}
+		}
+		while (a < sortedCount) {
+			sorted[out++] = work[a++];
+		}
+		while (b < n) {
+			sorted[out++] = added[b++];
+		}
+		sortedCount = total;
+
+		updateVisible();
+	}
+
+	/**
+	 * ファイルを消す
+	 *
+	 * @param names
+	 *            ファイル名
+	 */
+	public void removeAll(Collection<String> names) {
+		if (removeNames(names)) {
+			updateVisible();
+		}
+	}
+
+	/**
+	 * 並び順からファイルを外す 表示は更新しない
+	 *
+	 * @param names
+	 * @return 外したものがあればtrue
+	 */
+	private boolean removeNames(Collection<String> names) {
+		boolean ret = false;
+		for (String name : names) {
+			Integer id = idsByName.remove(name);
+			if (id != null) {
+				entries.set(id, null);
+				removedCount++;
+				ret = true;
+			}
+		}
+		if (!ret) {
+			return false;
+		}
+		int out = 0;
+		for (int i = 0; i < sortedCount; i++) {
+			if (entries.get(sorted[i]) != null) {
+				sorted[out++] = sorted[i];
+			}
+		}
+		sortedCount = out;
+		if (removedCount > 64 && removedCount > sortedCount) {
+			compact();
+		}
+		return true;
+	}
+
+	/**
+	 * 消したものが多くなったら番号を振り直す
+	 */
+	private void compact() {
+		FileEntry[] live = getEntries();
+		entries.clear();
+		nameIndex.clear();
+		idsByName.clear();
+		for (int i = 0; i < live.length; i++) {
+			idsByName.put(live[i].name, i);
+			entries.add(live[i]);
+			nameIndex.add(live[i].name);
+			sorted[i] = i;
+		}
+		removedCount = 0;
+		Arrays.fill(matched, false);
+	}
+
+	/**
+	 * 全てのファイル 絞り込みに関係なく並び順
+	 *
+	 * @return
+	 */
+	public FileEntry[] getEntries() {
+		FileEntry[] ret = new FileEntry[sortedCount];
+		for (int i = 0; i < sortedCount; i++) {
+			ret[i] = entries.get(sorted[i]);
+		}
+		return ret;
+	}
+
+	/**
+	 * 全て消す
+	 */
+	public void clear() {
+		entries.clear();
+		nameIndex.clear();
+		idsByName.clear();
+		Arrays.fill(matched, false);
+		removedCount = 0;
+		sortedCount = 0;
+		visibleCount = 0;
+		filter = "";
+		emptyMessage = null;
+		notifyDataSetChanged();
+	}
+
+	/**
+	 * 絞り込みの文字列を設定する
+	 *
+	 * @param text
+	 */
+	public void setFilter(String text) {
+		filter = text;
+		updateVisible();
+	}
+
+	/**
+	 * 表示するファイルが無い時に出す文字列
+	 *
+	 * @param message
+	 *            nullなら何も出さない
+	 */
+	public void setEmptyMessage(String message) {
+		emptyMessage = message;
+		notifyDataSetChanged();
+	}
+
+	/**
+	 * 表示しているファイルの数
+	 *
+	 * @return
+	 */
+	public int getEntryCount() {
+		return visibleCount;
+	}
+
+	/**
+	 * 表示し直す
+	 */
+	private void updateVisible() {
+		visible = ensure(visible, sortedCount);
+		int count = nameIndex.find(filter);
+		if (count < 0) {
+			System.arraycopy(sorted, 0, visible, 0, sortedCount);
+			visibleCount = sortedCount;
+			notifyDataSetChanged();
+			return;
+		}
+
+		int[] ids = nameIndex.getResult();
+		if (count * SMALL_RESULT_RATIO < sortedCount) {
+			// 少ないときは全体をなめずに、見つかったものだけを並べ替える
+			visibleCount = 0;
+			for (int i = 0; i < count; i++) {
+				int id = ids[i];
+				if (entries.get(id) != null) {
+					visible[visibleCount++] = id;
+				}
+			}
+			sort(visible, visibleCount);
+		} else {
+			// 条件に合うものに印を付け、並び順に拾う
+			// 削除したファイルの番号も返ってくるので、印は残っているものにだけ付ける
+			if (matched.length < entries.size()) {
+				matched = new boolean[Math.max(entries.size(),
+						matched.length * 2)];
+			}
+			for (int i = 0; i < count; i++) {
+				int id = ids[i];
+				if (entries.get(id) != null) {
+					matched[id] = true;
+				}
+			}
+			visibleCount = 0;
+			for (int i = 0; i < sortedCount; i++) {
+				int id = sorted[i];
+				if (matched[id]) {
+					visible[visibleCount++] = id;
+				}
+			}
+			// 次の絞り込みに印を持ち越さない
+			for (int i = 0; i < count; i++) {
+				matched[ids[i]] = false;
+			}
+		}
+		notifyDataSetChanged();
+	}
+
+	/**
+	 * 番号の配列をファイルの並び順に並べる
+	 *
+	 * @param ids
+	 * @param n
+	 */
+	private void sort(int[] ids, int n) {
+		work = ensure(work, n);
+		mergeSort(ids, work, 0, n);
+	}
+
+	private void mergeSort(int[] ids, int[] temp, int from, int to) {
+		if (to - from < 8) {
+			// 短い所は挿入ソート
+			for (int i = from + 1; i < to; i++) {
+				int id = ids[i];
+				int j = i - 1;
+				while (j >= from && compare(ids[j], id) > 0) {
+					ids[j + 1] = ids[j];
+					j--;
+				}
+				ids[j + 1] = id;
+			}
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		mergeSort(ids, temp, from, mid);
+		mergeSort(ids, temp, mid, to);
+		System.arraycopy(ids, from, temp, from, to - from);
+		int a = from;
+		int b = mid;
+		int out = from;
+		while (a < mid && b < to) {
+			if (compare(temp[a], temp[b]) <= 0) {
+				ids[out++] = temp[a++];
+			} else {
+				ids[out++] = temp[b++];
+			}
+		}
+		while (a < mid) {
+			ids[out++] = temp[a++];
+		}
+		while (b < to) {
+			ids[out++] = temp[b++];
+		}
+	}
+
+	private int compare(int a, int b) {
+		return entries.get(a).compareTo(entries.get(b));
+	}
+
+	/**
+	 * 配列の大きさを確保する
+	 *
+	 * @param array
+	 * @param size
+	 * @return
+	 */
+	private static int[] ensure(int[] array, int size) {
+		if (array.length >= size) {
+			return array;
+		}
+		int[] grown = new int[Math.max(size, array.length * 2)];
+		System.arraycopy(array, 0, grown, 0, array.length);
+		return grown;
+	}
+
+	// アダプタ==================================================================
+
+	@Override
+	public int getCount() {
+		if (visibleCount == 0 && emptyMessage != null) {
+			return 1;
+		}
+		return visibleCount;
+	}
+
+	@Override
+	public FileEntry getItem(int position) {
+		if (position < visibleCount) {
+			return entries.get(visible[position]);
+		}
+		return null;
+	}
+
+	@Override
+	public long getItemId(int position) {
+		return position < visibleCount ? visible[position] : -1;
+	}
+
+	@Override
+	public boolean areAllItemsEnabled() {
+		return false;
+	}
+
+	@Override
+	public boolean isEnabled(int position) {
+		return position < visibleCount;
+	}
+
+	@Override
+	public View getView(int position, View convertView, ViewGroup parent) {
+		ViewHolder holder;
+		if (convertView == null) {
+			convertView = inflater.inflate(R.layout.file_list_row, parent,
+					false);
+			holder = new ViewHolder();
+			holder.icon = (ImageView) convertView
+					.findViewById(R.id.FileListRowIcon_ImageView);
+			holder.title = (TextView) convertView
+					.findViewById(R.id.FileListRowTitle_TextView);
+			holder.detail = (TextView) convertView
+					.findViewById(R.id.FileListRowDetail_TextView);
+			convertView.setTag(holder);
+		} else {
+			holder = (ViewHolder) convertView.getTag();
+		}
+
+		FileEntry entry = position < visibleCount ? entries
+				.get(visible[position]) : null;
+		String path = null;
+		if (entry != null && !entry.isDirectory && directory != null
+				&& MediaIndexer.isAudio(entry.name)) {
+			path = directory.getPath() + "/" + entry.name;
+		}
+		if (holder.path != null && !holder.path.equals(path)) {
+			// 別の行に使い回されたので前の読み込みは取り消す
+			cancel(holder);
+		}
+		holder.path = path;
+
+		holder.title.setText(entry != null ? entry.label : emptyMessage);
+		AudioInfoLoader.Info info = path != null ? loader.get(path) : null;
+		if (info != null) {
+			bind(holder, info);
+		} else {
+			holder.icon.setVisibility(View.GONE);
+			holder.detail.setVisibility(View.GONE);
+			if (path != null && holder.task == null && !isFlinging) {
+				load(holder, path);
+			}
+		}
+		return convertView;
+	}
+
+	/**
+	 * 行の音声ファイルの情報を読み始める
+	 *
+	 * @param holder
+	 * @param path
+	 */
+	private void load(final ViewHolder holder, String path) {
+		holder.task = loader.load(path, new AudioInfoLoader.Callback() {
+			@Override
+			public void onLoaded(String loadedPath, AudioInfoLoader.Info info) {
+				if (loadedPath.equals(holder.path)) {
+					holder.task = null;
+					bind(holder, info);
+				}
+			}
+		});
+	}
+
+	/**
+	 * 行の読み込みを取り消す
+	 *
+	 * @param holder
+	 */
+	private void cancel(ViewHolder holder) {
+		if (holder.task != null) {
+			holder.task.cancel(true);
+			holder.task = null;
+		}
+	}
+
+	/**
+	 * 音声ファイルの情報を行に表示する
+	 *
+	 * @param holder
+	 * @param info
+	 */
+	private void bind(ViewHolder holder, AudioInfoLoader.Info info) {
+		if (info.title != null && info.title.length() > 0) {
+			holder.title.setText(info.title);
+		}
+		if (info.duration > 0) {
+			int seconds = info.duration / 1000;
+			holder.detail.setText(seconds / 60 + ":"
+					+ (seconds % 60 < 10 ? "0" : "") + seconds % 60);
+			holder.detail.setVisibility(View.VISIBLE);
+		} else {
+			holder.detail.setVisibility(View.GONE);
+		}
+		if (info.art != null) {
+			holder.icon.setImageBitmap(info.art);
+			holder.icon.setVisibility(View.VISIBLE);
+		} else {
+			holder.icon.setVisibility(View.GONE);
+		}
+	}
+}
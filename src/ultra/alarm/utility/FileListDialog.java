@@ -17,6 +17,9 @@ package ultra.alarm.utility;
  */
 
 import java.io.File;
+import java.util.ArrayList;
+
+import ultra.alarm.R;
 import ultra.alarm.utility.Utility;
 import ultra.alarm.utility.FileListView;
 import ultra.alarm.utility.FileListView.onFileListListener;
@@ -25,6 +28,14 @@ import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.LinearLayout;
+import android.widget.ListView;
 
 /**
  * ファイルリストダイアログクラス
@@ -38,7 +49,13 @@ public class FileListDialog implements onFileListListener {
 	private File _currentFile = null; // 現在の選択
 	private onFileListDialogListener _listener = null; // リスナー
 	private boolean _isDirectorySelect = false; // ディレクトリ選択をするか？
-	private CustomAlertDialog _dialog = null;
+	private CustomAlertDialog _dialog = null; // 表示中のダイアログ
+	private FileListView _listView = null; // 使い回すファイル一覧
+	private CustomAlertDialog _fileDialog = null; // 使い回すファイル一覧のダイアログ
+	private CustomAlertDialog _audioDialog = null; // 使い回す音声ファイルのダイアログ
+	private ArrayAdapter<MediaIndex.Entry> _audioAdapter = null; // 音声ファイルの一覧
+	private EditText _audioSearch = null; // 音声ファイルの検索欄
+	private String _audioTitle = null; // 音声ファイルのダイアログのタイトル
 
 	/**
 	 * ディレクトリ選択をするか？
@@ -78,6 +95,7 @@ public class FileListDialog implements onFileListListener {
 
 	/**
 	 * ダイアログ表示
+	 * 2回目以降は前回のダイアログを使い回し、前回のディレクトリとスクロール位置のまま表示する
 	 *
 	 * @param context
 	 *            親
@@ -88,28 +106,154 @@ public class FileListDialog implements onFileListListener {
 	 */
 	public void show(String path, String title) {
 
-		if (path == null) {
-			path = Utility.getSdcardPath();
-		} else if (path.length() == 0) {
-			path = Utility.getSdcardPath();
+		if (_listView == null || _listView.isSelectDir() != isDirectorySelect()) {
+			if (path == null) {
+				path = Utility.getSdcardPath();
+			} else if (path.length() == 0) {
+				path = Utility.getSdcardPath();
+			}
+
+			_listView = new FileListView(_parent, new File(path),
+					isDirectorySelect());
+			_listView.setOnFileListListener(this);
+
+			_fileDialog = new CustomAlertDialog(_parent);
+			_fileDialog.setView(_listView);
+			_fileDialog.setButton("Cancel", new OnClickListener() {
+				@Override
+				public void onClick(DialogInterface dialog, int which) {
+					// nop
+				}
+			});
+		}
+		_fileDialog.setTitle(title);
+		_dialog = _fileDialog;
+		_dialog.show();
+	}
+
+	/**
+	 * メモリが足りない時に呼ぶ 表示していないダイアログとキャッシュを捨てる
+	 */
+	public void trimMemory() {
+		if (_listView != null) {
+			_listView.trimMemory();
+		}
+		if (_dialog == null || !_dialog.isShowing()) {
+			_listView = null;
+			_fileDialog = null;
+			_audioDialog = null;
+			_audioAdapter = null;
+			_audioSearch = null;
+			_audioTitle = null;
+		}
+		DirectoryCache.getInstance().trim(0);
+	}
+
+	/**
+	 * 索引にある全ての音声ファイルから選ぶダイアログを表示する
+	 * 入力した文字でタイトルとファイル名を絞り込む 2回目以降はダイアログを使い回す
+	 * 索引はMediaIndex.loadAsyncで読み終えておくこと
+	 * フォルダから選ぶボタンでファイル一覧のダイアログに切り替えられる
+	 *
+	 * @param title
+	 *            ダイアログのタイトル
+	 */
+	public void showAudioFiles(String title) {
+		final MediaIndex index = MediaIndex.getInstance(_parent);
+		_audioTitle = title;
+
+		if (_audioDialog != null) {
+			// 索引が更新されているかもしれないので中身だけ入れ替える
+			String query = _audioSearch.getText().toString();
+			setEntries(_audioAdapter, query.length() == 0 ? index
+					.getEntries() : index.search(query));
+			_audioDialog.setTitle(title);
+			_dialog = _audioDialog;
+			_dialog.show();
+			return;
 		}
 
-		FileListView list = new FileListView(_parent, new File(path),
-				isDirectorySelect());
-		list.setOnFileListListener(this);
+		final ArrayAdapter<MediaIndex.Entry> adapter = new ArrayAdapter<MediaIndex.Entry>(
+				_parent, android.R.layout.simple_list_item_1);
+		setEntries(adapter, index.getEntries());
+
+		// 検索欄
+		EditText search = new EditText(_parent);
+		search.setSingleLine(true);
+		search.setHint(R.string.file_list_filter);
+		search.addTextChangedListener(new TextWatcher() {
+			@Override
+			public void beforeTextChanged(CharSequence s, int start,
+					int count, int after) {
+			}
+
+			@Override
+			public void onTextChanged(CharSequence s, int start, int before,
+					int count) {
+			}
 
-		_dialog = new CustomAlertDialog(_parent);
-		_dialog.setTitle(title);
-		_dialog.setView(list);
-		_dialog.setButton("Cancel", new OnClickListener() {
 			@Override
-			public void onClick(DialogInterface dialog, int which) {
-				// nop
+			public void afterTextChanged(Editable s) {
+				setEntries(adapter, index.search(s.toString()));
 			}
 		});
+
+		// 一覧
+		ListView list = new ListView(_parent);
+		list.setAdapter(adapter);
+		list.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+			@Override
+			public void onItemClick(AdapterView<?> parent, View view,
+					int position, long id) {
+				onSelectFile(new File(adapter.getItem(position).path));
+			}
+		});
+
+		LinearLayout layout = new LinearLayout(_parent);
+		layout.setOrientation(LinearLayout.VERTICAL);
+		layout.addView(search);
+		layout.addView(list);
+
+		_audioAdapter = adapter;
+		_audioSearch = search;
+		_audioDialog = new CustomAlertDialog(_parent);
+		_audioDialog.setTitle(title);
+		_audioDialog.setView(layout);
+		_audioDialog.setButton(DialogInterface.BUTTON_NEUTRAL, "フォルダから選ぶ",
+				new OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						// 索引に無いファイルも選べるように、フォルダをたどるダイアログを出す
+						show(Utility.getSdcardPath(), _audioTitle);
+					}
+				});
+		_audioDialog.setButton(DialogInterface.BUTTON_NEGATIVE, "Cancel",
+				new OnClickListener() {
+					@Override
+					public void onClick(DialogInterface dialog, int which) {
+						// nop
+					}
+				});
+		_dialog = _audioDialog;
 		_dialog.show();
 	}
 
+	/**
+	 * アダプタの中身を入れ替える
+	 *
+	 * @param adapter
+	 * @param entries
+	 */
+	private void setEntries(ArrayAdapter<MediaIndex.Entry> adapter,
+			ArrayList<MediaIndex.Entry> entries) {
+		adapter.setNotifyOnChange(false);
+		adapter.clear();
+		for (MediaIndex.Entry entry : entries) {
+			adapter.add(entry);
+		}
+		adapter.notifyDataSetChanged();
+	}
+
 	/**
 	 * リスナーのセット
 	 *
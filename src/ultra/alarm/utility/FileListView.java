@@ -16,42 +16,64 @@
 package ultra.alarm.utility;
 
 import java.io.File;
+import java.text.Collator;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Stack;
 
 import ultra.alarm.R.string;
 
 import android.content.Context;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Process;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.AttributeSet;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.ListView;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 import ultra.alarm.R;
 
 public class FileListView extends ViewGroup implements
-		AdapterView.OnItemClickListener, View.OnClickListener {
+		AdapterView.OnItemClickListener, View.OnClickListener, TextWatcher {
 
 	// 属性名
 	public final static String STR_ATTR_SELECT_DIR = "select_dir"; // ディレクトリ選択
 	public final static String STR_ATTR_DEFAULT_DIR = "default_dir"; // 初期ディレクトリ
 	public final static String STR_ATTR_DISPATCH_BACK_KEY = "dispatch_back"; // 戻るキーを受けるか
 
+	private final static int LIST_BATCH_SIZE = 64; // 一覧に一度に追加する件数
+	private final static int HISTORY_LIMIT = 32; // たどったパスを覚えておく数
+	private final static int FRAME_MILLIS = 16; // ディレクトリの変更をまとめて反映する間隔
+
 	private View _mainView = null;
 
 	private boolean _isSelectDir = false; // ディレクトリ選択
 	private File _currentDir = null; // カレントディレクトリ
-	private ArrayList<File> _currentDirFileList = null; // 現在のディレクトリのファイルの一覧
 	private Stack<File> _historyFileList = null; // たどったパスのスタック
 	private boolean _isDispatchBackKey = true; // 戻るキーを受けるか
 
 	private onFileListListener _listener = null; // リスナ
 
+	private Handler _handler = new Handler(); // 一覧取得の結果を受けるハンドラ
+	private ListTask _listTask = null; // 実行中の一覧取得
+	private DirObserver _observer = null; // 現在のディレクトリの監視
+	private boolean _isListed = false; // 現在のディレクトリの一覧を最後まで取得したか
+	private long _listedModified = 0; // 表示中の一覧に反映したディレクトリの更新日時
+	private FileListAdapter _adapter = null; // 現在のディレクトリのアダプタ
+
 	/**
 	 * ディレクトリ選択
 	 *
@@ -94,15 +116,18 @@ public class FileListView extends ViewGroup implements
 	}
 
 	/**
-	 * 現在のディレクトリのファイルの一覧
+	 * 現在のディレクトリのファイルの一覧 表示している順
 	 *
 	 * @return
 	 */
 	public ArrayList<File> getCurrentDirFileList() {
-		if (_currentDirFileList == null) {
-			_currentDirFileList = new ArrayList<File>();
+		ArrayList<File> ret = new ArrayList<File>();
+		if (_adapter != null) {
+			for (int i = 0; i < _adapter.getEntryCount(); i++) {
+				ret.add(_adapter.getItem(i).getFile(getCurrentDirectory()));
+			}
 		}
-		return _currentDirFileList;
+		return ret;
 	}
 
 	/**
@@ -224,10 +249,31 @@ public class FileListView extends ViewGroup implements
 			button.setOnClickListener(this);
 		}
 		// リストビューのイベント
+		_adapter = new FileListAdapter(getContext());
 		ListView list = (ListView) _mainView
 				.findViewById(R.id.FileList_ListView);
 		if (list != null) {
 			list.setOnItemClickListener(this);
+			list.setAdapter(_adapter);
+			// フリング中は音声ファイルの情報を読まない
+			list.setOnScrollListener(new AbsListView.OnScrollListener() {
+				@Override
+				public void onScrollStateChanged(AbsListView view,
+						int scrollState) {
+					_adapter.setFlinging(scrollState == SCROLL_STATE_FLING);
+				}
+
+				@Override
+				public void onScroll(AbsListView view, int firstVisibleItem,
+						int visibleItemCount, int totalItemCount) {
+				}
+			});
+		}
+		// 絞り込み
+		EditText filter = (EditText) _mainView
+				.findViewById(R.id.FileListFilter_EditText);
+		if (filter != null) {
+			filter.addTextChangedListener(this);
 		}
 
 		// 初期表示
@@ -295,7 +341,7 @@ public class FileListView extends ViewGroup implements
 	}
 
 	/**
-	 * ファイル一覧を登録する
+	 * ファイル一覧を登録する 一覧はバックグラウンドで取得して少しずつ追加する
 	 *
 	 * @param path
 	 */
@@ -307,52 +353,213 @@ public class FileListView extends ViewGroup implements
 		} else if (!dir.canRead()) {
 			// 読めない
 		} else {
-			// アダプタ作成
-			ArrayAdapter<String> adapter = new ArrayAdapter<String>(
-					getContext(), android.R.layout.simple_list_item_1);
-
-			File[] file_lists = dir.listFiles();
+			// 前のディレクトリの一覧取得と監視は止める
+			cancelListing();
+			stopObserving();
+
+			// 絞り込みは解除する
+			EditText filter = (EditText) _mainView
+					.findViewById(R.id.FileListFilter_EditText);
+			if (filter != null && filter.getText().length() > 0) {
+				filter.setText("");
+			}
 
-			// クリア
-			getCurrentDirFileList().clear();
 			// 現在のディレクトリ
 			setCurrentDirectory(dir);
 			viewCurrentDirectory(dir);
 
-			if (file_lists == null) {
-			} else {
-				// 追加
-				for (File file : file_lists) {
-					if (file.isDirectory()) {
-						// ディレクトリの場合
-						adapter.add(file.getName() + "/");
-						getCurrentDirFileList().add(file);
-					} else {
-						// 通常のファイル
-						if (isSelectDir()) {
-							// ディレクトリ選択モードの時は何もしない
-						} else {
-							adapter.add(file.getName());
-							getCurrentDirFileList().add(file);
-						}
-					}
-				}
-			}
-			// 空っぽ
-			if (adapter.getCount() == 0) {
-				adapter.add(getContext().getString(R.string.file_list_empty));
-			}
-			// 履歴に保存
+			// 履歴に保存 古いものは捨てる
 			getHistoryFileList().push(dir);
+			if (getHistoryFileList().size() > HISTORY_LIMIT) {
+				getHistoryFileList().remove(0);
+			}
 
-			// アダプタを設定
-			list.setAdapter(adapter);
+			loadDirectory(dir);
 
 			ret = true;
 		}
 		return ret;
 	}
 
+	/**
+	 * ディレクトリの一覧を取得して表示する キャッシュがあればそれを使う
+	 *
+	 * @param dir
+	 */
+	private void loadDirectory(File dir) {
+		cancelListing();
+		stopObserving();
+
+		// クリア アダプタは使い回す
+		_adapter.clear();
+		_adapter.setDirectory(dir);
+		_isListed = false;
+		EditText filter = (EditText) _mainView
+				.findViewById(R.id.FileListFilter_EditText);
+		if (filter != null) {
+			applyFilter(filter.getText().toString());
+		}
+
+		// 一覧の取得中の変更も拾うように先に監視を始める
+		_observer = new DirObserver(dir);
+		_observer.startWatching();
+
+		DirectoryCache.Listing cached = DirectoryCache.getInstance().get(dir);
+		if (cached != null) {
+			// キャッシュがあればすぐに表示する
+			addEntries(Arrays.asList(cached.entries));
+			finishListing(false, cached.lastModified);
+			DirectoryCache.getInstance().prefetchChildren(dir, cached);
+		} else {
+			// 一覧取得開始
+			_listTask = new ListTask(dir);
+			setLoading(true);
+			_listTask.start();
+		}
+	}
+
+	/**
+	 * 実行中の一覧取得を止める
+	 */
+	private void cancelListing() {
+		if (_listTask != null) {
+			_listTask.cancel();
+			_listTask = null;
+		}
+		setLoading(false);
+	}
+
+	/**
+	 * ディレクトリの監視を止める
+	 */
+	private void stopObserving() {
+		if (_observer != null) {
+			_observer.stop();
+			_observer = null;
+		}
+	}
+
+	/**
+	 * 取得した一覧を追加する
+	 *
+	 * @param entries
+	 */
+	private void addEntries(List<FileEntry> entries) {
+		if (isSelectDir()) {
+			// ディレクトリ選択モードの時はディレクトリだけ
+			ArrayList<FileEntry> dirs = new ArrayList<FileEntry>();
+			for (FileEntry entry : entries) {
+				if (entry.isDirectory) {
+					dirs.add(entry);
+				}
+			}
+			entries = dirs;
+		}
+		_adapter.addAll(entries);
+	}
+
+	/**
+	 * 絞り込みの文字列で表示し直す
+	 *
+	 * @param text
+	 */
+	private void applyFilter(String text) {
+		if (_adapter != null) {
+			_adapter.setFilter(text);
+		}
+	}
+
+	/**
+	 * 絞り込みの文字列が変わった
+	 */
+	@Override
+	public void afterTextChanged(Editable s) {
+		applyFilter(s.toString());
+	}
+
+	@Override
+	public void beforeTextChanged(CharSequence s, int start, int count,
+			int after) {
+	}
+
+	@Override
+	public void onTextChanged(CharSequence s, int start, int before, int count) {
+	}
+
+	/**
+	 * 一覧の取得が終わった
+	 *
+	 * @param isFailed
+	 *            一覧を取得できなかった
+	 * @param lastModified
+	 *            一覧を取得した時のディレクトリの更新日時
+	 */
+	private void finishListing(boolean isFailed, long lastModified) {
+		_listTask = null;
+		_isListed = !isFailed;
+		_listedModified = lastModified;
+		setLoading(false);
+		if (isFailed) {
+			_adapter.setEmptyMessage(getContext().getString(
+					R.string.file_list_dont_get_list));
+		} else {
+			// 空っぽ
+			_adapter.setEmptyMessage(getContext().getString(
+					R.string.file_list_empty));
+		}
+	}
+
+	/**
+	 * 読み込み中の表示
+	 *
+	 * @param isLoading
+	 */
+	private void setLoading(boolean isLoading) {
+		ProgressBar progress = (ProgressBar) _mainView
+				.findViewById(R.id.FileListLoading_ProgressBar);
+		if (progress == null) {
+		} else {
+			progress.setVisibility(isLoading ? View.VISIBLE : View.GONE);
+		}
+	}
+
+	/**
+	 * 画面に戻ってきた
+	 * 離れている間にディレクトリが変わっていなければ、一覧とスクロール位置はそのままで監視だけ再開する
+	 */
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		File dir = getCurrentDirectory();
+		if (_observer != null) {
+			// 監視中
+		} else if (_isListed && dir.lastModified() == _listedModified) {
+			// 大きなディレクトリはキャッシュされないので、一覧を取得した時の更新日時と比べる
+			_observer = new DirObserver(dir);
+			_observer.startWatching();
+		} else if (dir.canRead()) {
+			// 変わったか、途中で止めたので取得し直す
+			loadDirectory(dir);
+		}
+	}
+
+	/**
+	 * メモリが足りない時に呼ぶ 読んだ音声ファイルの情報を捨てる
+	 */
+	public void trimMemory() {
+		_adapter.trimMemory();
+	}
+
+	/**
+	 * 画面から外れたら一覧取得と監視を止める
+	 */
+	@Override
+	protected void onDetachedFromWindow() {
+		cancelListing();
+		stopObserving();
+		super.onDetachedFromWindow();
+	}
+
 	/**
 	 * 現在のパスを表示する
 	 *
@@ -374,12 +581,13 @@ public class FileListView extends ViewGroup implements
 	public void onItemClick(AdapterView<?> parent, View view, int position,
 			long id) {
 
-		if (getCurrentDirFileList() == null) {
-		} else if (getCurrentDirFileList().size() <= position) {
+		FileEntry entry = _adapter.getItem(position);
+		if (entry == null) {
+			// 空っぽの表示
 		} else {
-			File file = getCurrentDirFileList().get(position);
+			File file = entry.getFile(getCurrentDirectory());
 
-			if (file.isDirectory()) {
+			if (entry.isDirectory) {
 				// ディレクトリをたどる
 				if (!viewFiles(file)) {
 					file = null; // 失敗はnullを通知する
@@ -414,6 +622,198 @@ public class FileListView extends ViewGroup implements
 		}
 	}
 
+	/**
+	 * ディレクトリの一覧をバックグラウンドで取得するスレッド
+	 * LIST_BATCH_SIZE件ごとにUIスレッドへ渡す
+	 *
+	 * @author maro
+	 *
+	 */
+	private class ListTask extends Thread {
+		private final File _dir; // 一覧を取得するディレクトリ
+		private volatile boolean _isCancelled = false; // 取り消されたか
+		private long _lastModified = 0; // 一覧を取得し始めた時のディレクトリの更新日時
+
+		public ListTask(File dir) {
+			super("FileListView-ListTask");
+			_dir = dir;
+		}
+
+		/**
+		 * 取り消す 以降の結果は一覧に追加されない
+		 */
+		public void cancel() {
+			_isCancelled = true;
+			// 調べている途中のものも止める
+			interrupt();
+		}
+
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+			// listFilesより軽いので名前だけを取得する
+			long lastModified = _dir.lastModified();
+			_lastModified = lastModified;
+			String[] names = _dir.list();
+			if (names == null) {
+				post(null, true, true);
+				return;
+			}
+
+			// 一度だけ調べ、以降はファイルシステムを見ない
+			// 区切りごとに複数のスレッドで調べ、終わった区切りから順に渡す
+			FileEntry[] entries = ParallelStat.statAll(_dir, names,
+					LIST_BATCH_SIZE, new ParallelStat.OnChunkListener() {
+						@Override
+						public void onChunk(ArrayList<FileEntry> chunk) {
+							post(chunk, false, false);
+						}
+					});
+			if (entries == null || _isCancelled) {
+				return;
+			}
+			post(null, true, false);
+
+			// 次に開く時のためにキャッシュし、サブディレクトリを先読みする
+			DirectoryCache cache = DirectoryCache.getInstance();
+			cache.prefetchChildren(_dir,
+					cache.put(_dir, lastModified, entries));
+		}
+
+		/**
+		 * 結果をUIスレッドに渡す
+		 *
+		 * @param entries
+		 * @param isFinished
+		 *            最後の結果
+		 * @param isFailed
+		 *            一覧を取得できなかった
+		 */
+		private void post(final ArrayList<FileEntry> entries,
+				final boolean isFinished, final boolean isFailed) {
+			_handler.post(new Runnable() {
+				@Override
+				public void run() {
+					if (_isCancelled || _listTask != ListTask.this) {
+						// 別のディレクトリに移った
+						return;
+					}
+					if (entries != null && !entries.isEmpty()) {
+						addEntries(entries);
+					}
+					if (isFinished) {
+						finishListing(isFailed, _lastModified);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * 表示中のディレクトリの変更を監視する
+	 * 変更は1フレーム分まとめてから差分として一覧に反映する
+	 *
+	 * @author maro
+	 *
+	 */
+	private class DirObserver extends FileObserver {
+		private final File _dir; // 監視するディレクトリ
+		private final Collator _collator = Collator.getInstance(); // 監視のスレッドだけで使う
+		private final LinkedHashMap<String, FileEntry> _pending = new LinkedHashMap<String, FileEntry>(); // 反映待ちの変更 消えたものはnull
+		private boolean _isFlushPosted = false; // 反映を予約したか
+		private volatile boolean _isStopped = false; // 止めたか
+
+		private final Runnable _flushTask = new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		};
+
+		public DirObserver(File dir) {
+			super(dir.getAbsolutePath(), CREATE | DELETE | MOVED_FROM
+					| MOVED_TO | CLOSE_WRITE);
+			_dir = dir;
+		}
+
+		/**
+		 * 変更があった 監視のスレッドで呼ばれる
+		 */
+		@Override
+		public void onEvent(int event, String path) {
+			if (path == null || _isStopped) {
+				return;
+			}
+			FileEntry entry;
+			switch (event & ALL_EVENTS) {
+			case CREATE:
+			case MOVED_TO:
+			case CLOSE_WRITE:
+				// 増えたか大きさが変わったので調べる
+				entry = FileEntry.stat(_dir, path, _collator);
+				break;
+			case DELETE:
+			case MOVED_FROM:
+				entry = null;
+				break;
+			default:
+				return;
+			}
+			synchronized (_pending) {
+				_pending.put(path, entry);
+				if (!_isFlushPosted) {
+					_isFlushPosted = true;
+					_handler.postDelayed(_flushTask, FRAME_MILLIS);
+				}
+			}
+		}
+
+		/**
+		 * たまった変更を一覧に反映する UIスレッドで呼ばれる
+		 */
+		private void flush() {
+			// 取り出す前に読んでおく 取り出した後に来た変更の分は更新日時が合わなくなり、次は取得し直す
+			long lastModified = _dir.lastModified();
+			ArrayList<FileEntry> added = new ArrayList<FileEntry>();
+			ArrayList<String> removed = new ArrayList<String>();
+			synchronized (_pending) {
+				_isFlushPosted = false;
+				for (Map.Entry<String, FileEntry> change : _pending.entrySet()) {
+					if (change.getValue() != null) {
+						added.add(change.getValue());
+					} else {
+						removed.add(change.getKey());
+					}
+				}
+				_pending.clear();
+			}
+			if (_isStopped || _observer != this) {
+				return;
+			}
+			_adapter.removeAll(removed);
+			addEntries(added);
+			if (_listTask == null) {
+				_listedModified = lastModified;
+			}
+
+			// キャッシュも最新にしておく ディレクトリだけの一覧は登録しない
+			if (!isSelectDir() && _listTask == null) {
+				DirectoryCache.getInstance().put(_dir, lastModified,
+						_adapter.getEntries());
+			}
+		}
+
+		/**
+		 * 監視を止める
+		 */
+		public void stop() {
+			_isStopped = true;
+			stopWatching();
+			_handler.removeCallbacks(_flushTask);
+		}
+	}
+
 	/**
 	 * 選択した時のリスナ用インターフェースクラス
 	 *
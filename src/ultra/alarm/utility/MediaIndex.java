@@ -0,0 +1,465 @@
+package ultra.alarm.utility;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * SDカードの音声ファイルの索引
+ * パス、大きさ、更新日時、再生時間、タイトルを記録し、ファイルに保存する
+ * 索引の作成はMediaIndexerが行う
+ * タイトルとファイル名の検索にはNameIndexを使い、索引が変わった時だけ作り直す
+ *
+ * @author maro
+ *
+ */
+public class MediaIndex {
+	/**
+	 * 保存先のファイル名
+	 */
+	private static final String FILE_NAME = "media_index.bin";
+	/**
+	 * ファイルの先頭の印 "UIDX"
+	 */
+	private static final int MAGIC = 0x55494458;
+	private static final int VERSION = 2;
+	/**
+	 * タイトルとファイル名の区切り 検索文字列には含まれないので、またがって一致しない
+	 */
+	private static final char NAME_SEPARATOR = '\u0000';
+
+	private static MediaIndex instance;
+
+	private final Context context;
+	/**
+	 * 索引 キーはパス
+	 */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	/**
+	 * 今回の巡回でまだ見ていないディレクトリ 先頭から順に見る
+	 */
+	private final LinkedList<String> pending = new LinkedList<String>();
+	/**
+	 * 巡回の回数 今回の巡回で見つからなかったものを消すのに使う
+	 */
+	private int pass;
+	/**
+	 * 最後に巡回を終えた時刻 System.currentTimeMillis()基準(ミリ秒) 終えたことが無ければ0
+	 */
+	private long finishedAt;
+	/**
+	 * 保存していない索引の変更があるか
+	 */
+	private boolean dirty;
+	/**
+	 * 保存していない巡回の進み具合があるか 索引の中身は変わっていない
+	 */
+	private boolean progressed;
+	/**
+	 * 保存された索引を読み終えたか
+	 */
+	private volatile boolean loaded;
+	/**
+	 * 保存の順番を守るためのロック 後から作った内容が先に書かれないようにする
+	 */
+	private final Object saveLock = new Object();
+
+	/**
+	 * 検索用の索引 名前はタイトルとファイル名を区切り文字でつないだもの
+	 */
+	private final NameIndex names = new NameIndex();
+	/**
+	 * 検索用の索引の番号に対応する音声ファイル
+	 */
+	private final ArrayList<Entry> nameEntries = new ArrayList<Entry>();
+	/**
+	 * 検索用の索引を作り直す必要があるか
+	 */
+	private boolean namesStale = true;
+
+	/**
+	 * 索引の1件
+	 *
+	 * @author maro
+	 *
+	 */
+	public static class Entry {
+		public final String path;
+		public final long size;
+		public final long lastModified;
+		/**
+		 * 再生時間（ミリ秒） 分からない場合は0
+		 */
+		public final int duration;
+		/**
+		 * タイトル 無い場合はファイル名
+		 */
+		public final String title;
+		/**
+		 * 最後に見つかった巡回
+		 */
+		int pass;
+
+		public Entry(String path, long size, long lastModified, int duration,
+				String title) {
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.duration = duration;
+			this.title = title;
+		}
+
+		/**
+		 * ファイル名
+		 *
+		 * @return
+		 */
+		public String getName() {
+			return path.substring(path.lastIndexOf('/') + 1);
+		}
+
+		@Override
+		public String toString() {
+			return title;
+		}
+	}
+
+	private MediaIndex(Context context) {
+		this.context = context.getApplicationContext();
+	}
+
+	/**
+	 * アプリ全体で共有する索引
+	 *
+	 * @param context
+	 * @return
+	 */
+	public static synchronized MediaIndex getInstance(Context context) {
+		if (instance == null) {
+			instance = new MediaIndex(context);
+		}
+		return instance;
+	}
+
+	/**
+	 * 保存された索引をバックグラウンドで読み、読み終えたらメインスレッドで通知する
+	 * 読み終えていればすぐに通知する
+	 *
+	 * @param onLoaded
+	 */
+	public void loadAsync(final Runnable onLoaded) {
+		if (loaded) {
+			onLoaded.run();
+			return;
+		}
+		final Handler handler = new Handler(Looper.getMainLooper());
+		new Thread("MediaIndex-load") {
+			@Override
+			public void run() {
+				Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+				load();
+				handler.post(onLoaded);
+			}
+		}.start();
+	}
+
+	/**
+	 * 保存された索引を読む 2回目以降は何もしない
+	 * ファイルを読むので、メインスレッドではloadAsyncを使う
+	 */
+	public synchronized void load() {
+		if (loaded) {
+			return;
+		}
+		try {
+			byte[] data = Utility.file2data(context, FILE_NAME);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					data));
+			if (in.readInt() != MAGIC) {
+				return;
+			}
+			int version = in.readInt();
+			if (version != 1 && version != VERSION) {
+				return;
+			}
+			pass = in.readInt();
+			if (version >= 2) {
+				finishedAt = in.readLong();
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				Entry entry = new Entry(in.readUTF(), in.readLong(),
+						in.readLong(), in.readInt(), in.readUTF());
+				entry.pass = in.readInt();
+				entries.put(entry.path, entry);
+			}
+			int dirs = in.readInt();
+			for (int i = 0; i < dirs; i++) {
+				pending.add(in.readUTF());
+			}
+		} catch (FileNotFoundException e) {
+			// まだ作っていない
+		} catch (IOException e) {
+			// 壊れているので作り直す
+			entries.clear();
+			pending.clear();
+		} finally {
+			loaded = true;
+		}
+		namesStale = true;
+	}
+
+	/**
+	 * 巡回の進み具合も含めて、保存していないものがあれば保存する
+	 * 同時に呼ばれた場合は一つずつ、内容を作った順に書く
+	 *
+	 * @throws IOException
+	 */
+	public void save() throws IOException {
+		save(true);
+	}
+
+	/**
+	 * 索引の中身が変わっていれば保存する 巡回が進んだだけなら書かない
+	 *
+	 * @throws IOException
+	 */
+	void saveChanges() throws IOException {
+		save(false);
+	}
+
+	private void save(boolean withProgress) throws IOException {
+		synchronized (saveLock) {
+			byte[] data = serialize(withProgress);
+			if (data != null) {
+				Utility.data2file(context, data, FILE_NAME);
+			}
+		}
+	}
+
+	/**
+	 * 保存する内容を作る
+	 *
+	 * @param withProgress
+	 *            巡回が進んだだけでも作るか
+	 * @return 保存するものが無ければnull
+	 * @throws IOException
+	 */
+	private byte[] serialize(boolean withProgress) throws IOException {
+		byte[] data;
+		synchronized (this) {
+			if (!dirty && !(withProgress && progressed)) {
+				return null;
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(pass);
+			out.writeLong(finishedAt);
+			out.writeInt(entries.size());
+			for (Entry entry : entries.values()) {
+				out.writeUTF(entry.path);
+				out.writeLong(entry.size);
+				out.writeLong(entry.lastModified);
+				out.writeInt(entry.duration);
+				out.writeUTF(entry.title);
+				out.writeInt(entry.pass);
+			}
+			out.writeInt(pending.size());
+			for (String dir : pending) {
+				out.writeUTF(dir);
+			}
+			out.close();
+			data = bytes.toByteArray();
+			dirty = false;
+			progressed = false;
+		}
+		return data;
+	}
+
+	/**
+	 * 音声ファイルが1つも無いか
+	 *
+	 * @return
+	 */
+	public synchronized boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	/**
+	 * 全ての音声ファイル
+	 *
+	 * @return
+	 */
+	public synchronized ArrayList<Entry> getEntries() {
+		return new ArrayList<Entry>(entries.values());
+	}
+
+	/**
+	 * タイトルかファイル名に文字列を含む音声ファイルを探す
+	 * 大文字と小文字、全角と半角は区別しない
+	 *
+	 * @param query
+	 * @return 検索文字列が空の場合は全ての音声ファイル
+	 */
+	public synchronized ArrayList<Entry> search(String query) {
+		if (namesStale) {
+			rebuildNames();
+		}
+		int[] ids = names.search(query);
+		if (ids == null) {
+			return getEntries();
+		}
+		ArrayList<Entry> result = new ArrayList<Entry>(ids.length);
+		for (int id : ids) {
+			result.add(nameEntries.get(id));
+		}
+		return result;
+	}
+
+	/**
+	 * 検索用の索引を作り直す
+	 */
+	private void rebuildNames() {
+		names.clear();
+		nameEntries.clear();
+		for (Entry entry : entries.values()) {
+			addName(entry);
+		}
+		namesStale = false;
+	}
+
+	/**
+	 * 検索用の索引に追加する
+	 *
+	 * @param entry
+	 */
+	private void addName(Entry entry) {
+		names.add(entry.title + NAME_SEPARATOR + entry.getName());
+		nameEntries.add(entry);
+	}
+
+	// 索引の作成用==============================================================
+
+	/**
+	 * 巡回の途中か
+	 *
+	 * @return
+	 */
+	synchronized boolean isInPass() {
+		return !pending.isEmpty();
+	}
+
+	/**
+	 * 最後に巡回を終えた時刻
+	 *
+	 * @return System.currentTimeMillis()基準(ミリ秒) 終えたことが無ければ0
+	 */
+	synchronized long getFinishedAt() {
+		return finishedAt;
+	}
+
+	/**
+	 * 新しい巡回を始める
+	 *
+	 * @param root
+	 *            巡回を始めるディレクトリ
+	 */
+	synchronized void beginPass(String root) {
+		pass++;
+		pending.clear();
+		pending.add(root);
+		dirty = true;
+	}
+
+	/**
+	 * 次に見るディレクトリ
+	 *
+	 * @return 巡回が終わっていればnull
+	 */
+	synchronized String peekDirectory() {
+		return pending.peek();
+	}
+
+	/**
+	 * ディレクトリを見終わった
+	 *
+	 * @param dir
+	 * @param subdirs
+	 *            見つかったサブディレクトリ
+	 */
+	synchronized void completeDirectory(String dir, ArrayList<String> subdirs) {
+		if (dir.equals(pending.peek())) {
+			pending.poll();
+		}
+		pending.addAll(0, subdirs);
+		progressed = true;
+	}
+
+	/**
+	 * 大きさと更新日時が同じなら今回の巡回で見つかったことにする
+	 *
+	 * @param path
+	 * @param size
+	 * @param lastModified
+	 * @return 変わっていない場合はtrue
+	 */
+	synchronized boolean touch(String path, long size, long lastModified) {
+		Entry entry = entries.get(path);
+		if (entry == null || entry.size != size
+				|| entry.lastModified != lastModified) {
+			return false;
+		}
+		if (entry.pass != pass) {
+			// 見つかった印を付けただけで、索引の中身は変わらない
+			entry.pass = pass;
+			progressed = true;
+		}
+		return true;
+	}
+
+	/**
+	 * 登録する
+	 *
+	 * @param entry
+	 */
+	synchronized void put(Entry entry) {
+		entry.pass = pass;
+		if (entries.put(entry.path, entry) != null) {
+			// 置き換えた古いものが検索用の索引に残っている
+			namesStale = true;
+		} else if (!namesStale) {
+			addName(entry);
+		}
+		dirty = true;
+	}
+
+	/**
+	 * 巡回を終える 今回見つからなかったものを消す
+	 */
+	synchronized void finishPass() {
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().pass != pass) {
+				it.remove();
+				namesStale = true;
+			}
+		}
+		pending.clear();
+		finishedAt = System.currentTimeMillis();
+		dirty = true;
+	}
+}
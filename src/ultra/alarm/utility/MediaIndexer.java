@@ -0,0 +1,235 @@
+package ultra.alarm.utility;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Locale;
+
+import android.content.Context;
+import android.media.MediaMetadataRetriever;
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * SDカードを巡回してMediaIndexを作るスレッド
+ * 優先度を最低にして動き、止められた場合は次回に続きから巡回する
+ * 大きさと更新日時が変わっていないファイルはメタデータを読み直さない
+ * 巡回を終えたばかりの場合は巡回しない
+ *
+ * @author maro
+ *
+ */
+public class MediaIndexer extends Thread {
+	/**
+	 * 途中経過を保存する間隔（ミリ秒） 索引の中身が変わった時だけ保存する
+	 */
+	private static final long SAVE_INTERVAL = 30 * 1000;
+	/**
+	 * 巡回を終えてからこの時間（ミリ秒）が経つまでは、新しい巡回を始めない
+	 */
+	private static final long WALK_INTERVAL = 30 * 60 * 1000;
+	/**
+	 * 音声ファイルとして扱う拡張子
+	 */
+	private static final String[] AUDIO_EXTENSIONS = { ".mp3", ".m4a",
+			".aac", ".ogg", ".wav", ".flac", ".mid", ".amr", ".wma" };
+
+	/**
+	 * 最後に始めたスレッド 止めた後も終わるまでは残す
+	 */
+	private static MediaIndexer running;
+
+	private final MediaIndex index;
+	private final String root;
+	private volatile boolean cancelled;
+	/**
+	 * 止められてまだ終わっていない前のスレッド 巡回を始める前に終わるのを待つ
+	 */
+	private MediaIndexer previous;
+
+	private MediaIndexer(MediaIndex index, String root, MediaIndexer previous) {
+		super("MediaIndexer");
+		this.index = index;
+		this.root = root;
+		this.previous = previous;
+	}
+
+	/**
+	 * 巡回を始める 既に動いている場合は何もしない
+	 * 止めた前のスレッドがまだ動いている場合は、それが終わってから続きを巡回する
+	 *
+	 * @param context
+	 */
+	public static synchronized void startIndexing(Context context) {
+		if (running != null && running.isAlive() && !running.cancelled) {
+			return;
+		}
+		String root = Utility.getSdcardPath();
+		if (root == null) {
+			return;
+		}
+		MediaIndexer previous = running != null && running.isAlive() ? running
+				: null;
+		running = new MediaIndexer(MediaIndex.getInstance(context), root,
+				previous);
+		running.start();
+	}
+
+	/**
+	 * 巡回を止める 途中経過は保存され、次回は続きから巡回する
+	 */
+	public static synchronized void stopIndexing() {
+		if (running != null) {
+			running.cancelled = true;
+		}
+	}
+
+	@Override
+	public void run() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+
+		// 同時に2つのスレッドが巡回しないように、前のスレッドが終わるのを待つ
+		if (previous != null) {
+			try {
+				previous.join();
+			} catch (InterruptedException e) {
+				return;
+			}
+			previous = null;
+		}
+		if (cancelled) {
+			return;
+		}
+
+		index.load();
+		if (!index.isInPass()) {
+			long elapsed = System.currentTimeMillis() - index.getFinishedAt();
+			if (elapsed >= 0 && elapsed < WALK_INTERVAL) {
+				// 終えたばかりなので見直さない
+				return;
+			}
+			index.beginPass(root);
+		}
+
+		MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+		try {
+			long savedAt = SystemClock.uptimeMillis();
+			String dir;
+			while (!cancelled && (dir = index.peekDirectory()) != null) {
+				scanDirectory(retriever, dir);
+				long now = SystemClock.uptimeMillis();
+				if (now - savedAt >= SAVE_INTERVAL) {
+					saveChanges();
+					savedAt = now;
+				}
+			}
+			if (!cancelled) {
+				index.finishPass();
+			}
+		} finally {
+			retriever.release();
+			save();
+		}
+	}
+
+	/**
+	 * ディレクトリの中の音声ファイルを登録する
+	 *
+	 * @param retriever
+	 * @param path
+	 */
+	private void scanDirectory(MediaMetadataRetriever retriever, String path) {
+		ArrayList<String> subdirs = new ArrayList<String>();
+		File[] files = new File(path).listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (cancelled) {
+					// 見終わっていないので次回もう一度見る
+					return;
+				}
+				String name = file.getName();
+				if (name.startsWith(".")) {
+					// 隠しファイルは見ない
+				} else if (file.isDirectory()) {
+					subdirs.add(file.getAbsolutePath());
+				} else if (isAudio(name)) {
+					scanFile(retriever, file);
+				}
+			}
+		}
+		index.completeDirectory(path, subdirs);
+	}
+
+	/**
+	 * 音声ファイルを登録する 変わっていなければメタデータは読まない
+	 *
+	 * @param retriever
+	 * @param file
+	 */
+	private void scanFile(MediaMetadataRetriever retriever, File file) {
+		String path = file.getAbsolutePath();
+		long size = file.length();
+		long lastModified = file.lastModified();
+		if (index.touch(path, size, lastModified)) {
+			return;
+		}
+
+		int duration = 0;
+		String title = null;
+		try {
+			retriever.setDataSource(path);
+			String value = retriever
+					.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+			if (value != null) {
+				duration = Integer.parseInt(value);
+			}
+			title = retriever
+					.extractMetadata(MediaMetadataRetriever.METADATA_KEY_TITLE);
+		} catch (RuntimeException e) {
+			// 読めないファイルもファイル名で登録しておく
+		}
+		if (title == null || title.length() == 0) {
+			title = file.getName();
+		}
+		index.put(new MediaIndex.Entry(path, size, lastModified, duration,
+				title));
+	}
+
+	/**
+	 * 途中経過を保存する 次回は続きから巡回できる
+	 */
+	private void save() {
+		try {
+			index.save();
+		} catch (IOException e) {
+			Utility.outputDebugLog("MediaIndexer: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * 索引の中身が変わっていれば保存する
+	 */
+	private void saveChanges() {
+		try {
+			index.saveChanges();
+		} catch (IOException e) {
+			Utility.outputDebugLog("MediaIndexer: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * 音声ファイルの拡張子か
+	 *
+	 * @param name
+	 * @return
+	 */
+	static boolean isAudio(String name) {
+		String lower = name.toLowerCase(Locale.ENGLISH);
+		for (String ext : AUDIO_EXTENSIONS) {
+			if (lower.endsWith(ext)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
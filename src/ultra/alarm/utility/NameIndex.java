@@ -0,0 +1,239 @@
+package ultra.alarm.utility;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Locale;
+
+import android.util.SparseArray;
+
+/**
+ * ファイル名の絞り込み用の索引
+ * 名前をNFKCで正規化して小文字にし、全角と半角、大文字と小文字を区別しないで部分一致で探す
+ * 文字ごとにその文字を含む名前の番号を持ち、一番少ない文字の候補だけを確かめる
+ * 1文字の検索は候補をそのまま結果にし、結果の配列は使い回して入力のたびに生成しない
+ *
+ * @author maro
+ *
+ */
+public class NameIndex {
+	/**
+	 * 正規化した名前 番号順
+	 */
+	private final ArrayList<String> names = new ArrayList<String>();
+	/**
+	 * 文字→その文字を含む名前の番号（昇順）
+	 */
+	private final SparseArray<IntList> postings = new SparseArray<IntList>();
+
+	/**
+	 * 前回の検索 続けて入力された場合はこの結果から絞り込む
+	 */
+	private String lastQuery;
+	private IntList lastResult;
+	/**
+	 * 結果を入れる配列 前回の結果から絞り込めるように2つを交互に使う
+	 */
+	private final IntList resultA = new IntList(64);
+	private final IntList resultB = new IntList(64);
+	/**
+	 * 前回の検索の時の名前の数
+	 */
+	private int lastSize;
+
+	/**
+	 * 伸ばせるintの配列
+	 */
+	private static class IntList {
+		int[] data;
+		int size;
+
+		IntList(int capacity) {
+			data = new int[capacity];
+		}
+
+		void add(int value) {
+			if (size == data.length) {
+				int[] grown = new int[size * 2];
+				System.arraycopy(data, 0, grown, 0, size);
+				data = grown;
+			}
+			data[size++] = value;
+		}
+
+		int last() {
+			return size > 0 ? data[size - 1] : -1;
+		}
+	}
+
+	/**
+	 * 比較用に正規化する 全角英数と半角カナはNFKCでそろえ、小文字にする
+	 *
+	 * @param name
+	 * @return
+	 */
+	public static String normalize(String name) {
+		return Normalizer.normalize(name, Normalizer.Form.NFKC).toLowerCase(
+				Locale.ENGLISH);
+	}
+
+	/**
+	 * 名前を追加する
+	 *
+	 * @param name
+	 * @return 番号 追加した順に0から
+	 */
+	public int add(String name) {
+		String normalized = normalize(name);
+		int id = names.size();
+		names.add(normalized);
+		for (int i = 0; i < normalized.length(); i++) {
+			char c = normalized.charAt(i);
+			IntList list = postings.get(c);
+			if (list == null) {
+				list = new IntList(4);
+				postings.put(c, list);
+			}
+			// 同じ名前に同じ文字が何度あっても1回だけ登録する
+			if (list.last() != id) {
+				list.add(id);
+			}
+		}
+		return id;
+	}
+
+	/**
+	 * 全て消す
+	 */
+	public void clear() {
+		names.clear();
+		postings.clear();
+		lastQuery = null;
+		lastResult = null;
+	}
+
+	/**
+	 * 登録した名前の数
+	 *
+	 * @return
+	 */
+	public int size() {
+		return names.size();
+	}
+
+	/**
+	 * 名前が条件に合うか
+	 *
+	 * @param id
+	 * @param normalizedQuery
+	 *            normalizeした検索文字列
+	 * @return
+	 */
+	public boolean matches(int id, String normalizedQuery) {
+		return names.get(id).indexOf(normalizedQuery) >= 0;
+	}
+
+	/**
+	 * 検索文字列を部分に含む名前を探す
+	 *
+	 * @param query
+	 * @return 番号の昇順の配列 検索文字列が空の場合はnull
+	 */
+	public int[] search(String query) {
+		int count = find(query);
+		if (count < 0) {
+			return null;
+		}
+		int[] ids = new int[count];
+		System.arraycopy(lastResult.data, 0, ids, 0, count);
+		return ids;
+	}
+
+	/**
+	 * 検索文字列を部分に含む名前を探す 結果はgetResultで受け取る
+	 * 配列を生成しないので、入力のたびに呼ぶ絞り込みに使う
+	 *
+	 * @param query
+	 * @return 見つかった数 検索文字列が空の場合は-1
+	 */
+	public int find(String query) {
+		String q = normalize(query);
+		if (q.length() == 0) {
+			lastQuery = null;
+			lastResult = null;
+			return -1;
+		}
+
+		IntList result;
+		if (q.length() == 1) {
+			// 1文字ならその文字を含む名前がそのまま結果になる
+			result = postings.get(q.charAt(0));
+			if (result == null) {
+				result = resultA;
+				result.size = 0;
+			}
+		} else if (lastQuery != null && lastSize == names.size()
+				&& q.startsWith(lastQuery)) {
+			// 入力が伸びただけなら前回の結果から絞り込む
+			result = filter(lastResult, q);
+		} else {
+			// 一番候補の少ない文字から探す
+			IntList rarest = null;
+			for (int i = 0; i < q.length(); i++) {
+				IntList list = postings.get(q.charAt(i));
+				if (list == null) {
+					rarest = null;
+					break;
+				}
+				if (rarest == null || list.size < rarest.size) {
+					rarest = list;
+				}
+			}
+			if (rarest != null) {
+				result = filter(rarest, q);
+			} else {
+				// 含まれない文字がある
+				result = resultA;
+				result.size = 0;
+			}
+		}
+
+		lastQuery = q;
+		lastResult = result;
+		lastSize = names.size();
+		return result.size;
+	}
+
+	/**
+	 * 直前のfindの結果
+	 * findの戻り値の数だけが有効で、次にfind,add,clearを呼ぶまで使える 書き換えないこと
+	 *
+	 * @return 番号の昇順の配列
+	 */
+	public int[] getResult() {
+		return lastResult != null ? lastResult.data : null;
+	}
+
+	/**
+	 * 候補のうち条件に合うものだけを残す 結果は使い回している配列に入れる
+	 *
+	 * @param candidates
+	 * @param q
+	 *            正規化した検索文字列
+	 * @return
+	 */
+	private IntList filter(IntList candidates, String q) {
+		IntList result = candidates == resultA ? resultB : resultA;
+		result.size = 0;
+		if (result.data.length < candidates.size) {
+			result.data = new int[Math.max(candidates.size,
+					result.data.length * 2)];
+		}
+		for (int i = 0; i < candidates.size; i++) {
+			int id = candidates.data[i];
+			if (names.get(id).indexOf(q) >= 0) {
+				result.add(id);
+			}
+		}
+		return result;
+	}
+}
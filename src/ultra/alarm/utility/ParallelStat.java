@@ -0,0 +1,177 @@
+package ultra.alarm.utility;
+
+import java.io.File;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Process;
+
+/**
+ * ディレクトリの中のファイルを複数のスレッドで調べる
+ * 遅いSDカードやネットワーク上のディレクトリで、ファイルごとの問い合わせを並行して行う
+ * 結果は区切りごとに、並び順どおりに受け取る
+ *
+ * @author maro
+ *
+ */
+public class ParallelStat {
+	/**
+	 * スレッドの数 コア数に合わせ、2から4まで
+	 */
+	private static final int THREADS = Math.max(2, Math.min(4, Runtime
+			.getRuntime().availableProcessors()));
+
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+			THREADS, THREADS, 10, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private int count;
+
+				@Override
+				public synchronized Thread newThread(final Runnable r) {
+					return new Thread("ParallelStat-" + (++count)) {
+						@Override
+						public void run() {
+							Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+							r.run();
+						}
+					};
+				}
+			});
+
+	static {
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * 区切りごとの結果を受け取るリスナー
+	 *
+	 * @author maro
+	 *
+	 */
+	public interface OnChunkListener {
+		/**
+		 * 区切りの結果 statAllを呼んだスレッドで、先頭から順に呼ばれる
+		 *
+		 * @param entries
+		 */
+		public void onChunk(ArrayList<FileEntry> entries);
+	}
+
+	/**
+	 * ファイルを調べる
+	 * 呼んだスレッドが割り込まれた場合は残りを取り消してnullを返す
+	 *
+	 * @param dir
+	 * @param names
+	 *            dirの中のファイル名
+	 * @param chunkSize
+	 *            一つのスレッドにまとめて渡す件数
+	 * @param listener
+	 *            区切りごとの結果を受け取る nullなら受け取らない
+	 * @return namesと同じ順の結果 取り消された場合はnull
+	 */
+	public static FileEntry[] statAll(File dir, String[] names, int chunkSize,
+			OnChunkListener listener) {
+		FileEntry[] entries = new FileEntry[names.length];
+		int chunks = (names.length + chunkSize - 1) / chunkSize;
+		if (chunks <= 1) {
+			// 少ない場合はこのスレッドで調べる
+			if (!statRange(dir, names, entries, 0, names.length)) {
+				return null;
+			}
+			deliver(listener, entries, 0, names.length);
+			return entries;
+		}
+
+		ArrayList<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(
+				chunks);
+		for (int i = 0; i < chunks; i++) {
+			futures.add(executor.submit(new StatTask(dir, names, entries, i
+					* chunkSize, Math.min(names.length, (i + 1) * chunkSize))));
+		}
+		try {
+			for (int i = 0; i < chunks; i++) {
+				if (!futures.get(i).get()) {
+					throw new InterruptedException();
+				}
+				// 先頭から順に渡す 後ろの区切りが先に終わっていても待つ
+				deliver(listener, entries, i * chunkSize, Math.min(
+						names.length, (i + 1) * chunkSize));
+			}
+		} catch (InterruptedException e) {
+			cancelAll(futures);
+			return null;
+		} catch (ExecutionException e) {
+			cancelAll(futures);
+			throw new RuntimeException(e.getCause());
+		}
+		return entries;
+	}
+
+	/**
+	 * 範囲のファイルを調べる
+	 *
+	 * @return 割り込まれた場合はfalse
+	 */
+	private static boolean statRange(File dir, String[] names,
+			FileEntry[] entries, int from, int to) {
+		Collator collator = Collator.getInstance();
+		for (int i = from; i < to; i++) {
+			if (Thread.currentThread().isInterrupted()) {
+				return false;
+			}
+			entries[i] = FileEntry.stat(dir, names[i], collator);
+		}
+		return true;
+	}
+
+	private static void deliver(OnChunkListener listener,
+			FileEntry[] entries, int from, int to) {
+		if (listener == null) {
+			return;
+		}
+		ArrayList<FileEntry> chunk = new ArrayList<FileEntry>(to - from);
+		for (int i = from; i < to; i++) {
+			chunk.add(entries[i]);
+		}
+		listener.onChunk(chunk);
+	}
+
+	private static void cancelAll(ArrayList<Future<Boolean>> futures) {
+		for (Future<Boolean> future : futures) {
+			future.cancel(true);
+		}
+	}
+
+	/**
+	 * 一つの区切りを調べるタスク
+	 */
+	private static class StatTask implements Callable<Boolean> {
+		private final File dir;
+		private final String[] names;
+		private final FileEntry[] entries;
+		private final int from;
+		private final int to;
+
+		StatTask(File dir, String[] names, FileEntry[] entries, int from,
+				int to) {
+			this.dir = dir;
+			this.names = names;
+			this.entries = entries;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public Boolean call() {
+			return statRange(dir, names, entries, from, to);
+		}
+	}
+}
@@ -16,12 +16,18 @@ package ultra.alarm.utility;
  * limitations under the License.
  */
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -42,6 +48,31 @@ import ultra.alarm.R;
 public class Utility {
 	private static boolean DEBUG = false;
 
+	/**
+	 * file2strで使う文字コード
+	 */
+	public static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+
+	/**
+	 * file2bufferでメモリにマップするファイルの大きさの下限
+	 */
+	private static final long MAP_THRESHOLD = 256 * 1024;
+
+	/**
+	 * 文字コードの変換で一度に読むバイト数
+	 */
+	private static final int DECODE_BUFFER_SIZE = 8 * 1024;
+
+	/**
+	 * 保存の予約を遅らせる時間(ミリ秒)
+	 */
+	private static final long WRITE_BEHIND_DELAY = 500;
+
+	/**
+	 * 保存の予約を受け付けるクラス
+	 */
+	private static WriteBehind writeBehind;
+
 	public static void setDebug(boolean on) {
 		DEBUG = on;
 	}
@@ -241,87 +272,236 @@ public class Utility {
 	}
 
 	/**
-	 * ファイル→文字列
+	 * ファイル→文字列 UTF-8として読む
 	 *
 	 * @param context
 	 *            　コンテキスト（コレがNULLの場合は任意の場所から読める）
 	 * @param fileName
 	 *            ファイル名
-	 * @return 成否
+	 * @return ファイルの内容
+	 * @throws IOException
+	 *             読めなかった場合
 	 */
-	public static String file2str(Context context, String fileName) {
-		byte[] w = file2data(context, fileName);
-		if (w == null) {
-			return "";
-		} else {
-			return new String(w);
-		}
+	public static String file2str(Context context, String fileName)
+			throws IOException {
+		return file2str(context, fileName, DEFAULT_CHARSET);
 	}
 
 	/**
-	 * ファイル→バイトデータ
+	 * ファイル→文字列 文字コードを指定して少しずつ変換する
 	 *
 	 * @param context
-	 *            コンテキスト（コレがNULLの場合は任意の場所から読める）
+	 *            　コンテキスト（コレがNULLの場合は任意の場所から読める）
 	 * @param fileName
 	 *            ファイル名
-	 * @return 成否
+	 * @param charset
+	 *            文字コード
+	 * @return ファイルの内容
+	 * @throws IOException
+	 *             読めなかった場合、文字コードとして正しくない場合
 	 */
-	public static byte[] file2data(Context context, String fileName) {
-		int size;
-		byte[] ret = null;
-		byte[] w = new byte[1024];
-		InputStream in = null;
-		ByteArrayOutputStream out = null;
-
+	public static String file2str(Context context, String fileName,
+			Charset charset) throws IOException {
+		byte[] pendingData = getPendingWrite(resolveFile(context, fileName));
+		if (pendingData != null) {
+			return charset.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPORT)
+					.onUnmappableCharacter(CodingErrorAction.REPORT)
+					.decode(ByteBuffer.wrap(pendingData)).toString();
+		}
+		FileInputStream in = openInput(context, fileName);
 		try {
-			if (context != null) {
-				in = context.openFileInput(fileName);
-			} else {
-				File inFile = new File(fileName);
-				in = new FileInputStream(inFile);
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			CharsetDecoder decoder = charset.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPORT)
+					.onUnmappableCharacter(CodingErrorAction.REPORT);
+			// 出力はファイルの大きさから見積もり、足りない時だけ広げる
+			CharBuffer out = CharBuffer.allocate((int) Math.min(
+					Integer.MAX_VALUE - 1,
+					size * decoder.averageCharsPerByte()) + 1);
+			ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(
+					DECODE_BUFFER_SIZE, Math.max(size, 1)));
+			boolean eof = false;
+			while (!eof) {
+				eof = channel.read(buffer) < 0;
+				buffer.flip();
+				out = decode(decoder, buffer, out, eof);
+				buffer.compact();
 			}
-			out = new ByteArrayOutputStream();
 			while (true) {
-				size = in.read(w);
-				if (size <= 0) {
+				CoderResult result = decoder.flush(out);
+				if (!result.isOverflow()) {
 					break;
 				}
-				out.write(w, 0, size);
+				out = grow(out);
 			}
+			return new String(out.array(), 0, out.position());
+		} finally {
 			in.close();
-			out.close();
-			ret = out.toByteArray();
-		} catch (Exception e) {
-			try {
-				if (in != null) {
-					in.close();
-				}
-				if (out != null) {
-					out.close();
-				}
-			} catch (Exception e2) {
+		}
+	}
+
+	/**
+	 * バイト列を出力先に変換する 出力先が足りなくなったら広げる
+	 *
+	 * @return 出力先
+	 * @throws CharacterCodingException
+	 */
+	private static CharBuffer decode(CharsetDecoder decoder, ByteBuffer in,
+			CharBuffer out, boolean endOfInput)
+			throws CharacterCodingException {
+		while (true) {
+			CoderResult result = decoder.decode(in, out, endOfInput);
+			if (result.isOverflow()) {
+				out = grow(out);
+			} else if (result.isError()) {
+				result.throwException();
+			} else {
+				return out;
 			}
 		}
-		return ret;
 	}
 
 	/**
-	 * 文字列をファイルへ保存する
+	 * 倍の大きさの文字バッファに移す
+	 */
+	private static CharBuffer grow(CharBuffer out) {
+		CharBuffer larger = CharBuffer.allocate(out.capacity() * 2 + 16);
+		out.flip();
+		larger.put(out);
+		return larger;
+	}
+
+	/**
+	 * ファイル→バイトデータ
+	 * ファイルの大きさのバッファを一度だけ確保し、そこへ直接読み込む
+	 *
+	 * @param context
+	 *            コンテキスト（コレがNULLの場合は任意の場所から読める）
+	 * @param fileName
+	 *            ファイル名
+	 * @return ファイルの内容
+	 * @throws IOException
+	 *             読めなかった場合
+	 */
+	public static byte[] file2data(Context context, String fileName)
+			throws IOException {
+		byte[] pendingData = getPendingWrite(resolveFile(context, fileName));
+		if (pendingData != null) {
+			return pendingData.clone();
+		}
+		FileInputStream in = openInput(context, fileName);
+		try {
+			return readFully(in.getChannel(), fileName);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * チャンネルの内容をファイルの大きさのバッファに読み込む
+	 *
+	 * @param channel
+	 * @param fileName
+	 *            エラー表示用のファイル名
+	 * @return
+	 * @throws IOException
+	 */
+	private static byte[] readFully(FileChannel channel, String fileName)
+			throws IOException {
+		long size = channel.size();
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("file too large: " + fileName);
+		}
+		byte[] data = new byte[(int) size];
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				break;
+			}
+		}
+		if (buffer.hasRemaining()) {
+			// 読んでいる間にファイルが短くなった
+			byte[] shrunk = new byte[buffer.position()];
+			System.arraycopy(data, 0, shrunk, 0, shrunk.length);
+			return shrunk;
+		}
+		return data;
+	}
+
+	/**
+	 * ファイル→バイトバッファ
+	 * 大きなファイルはメモリにマップし、ヒープにコピーしない
+	 *
+	 * @param context
+	 *            コンテキスト（コレがNULLの場合は任意の場所から読める）
+	 * @param fileName
+	 *            ファイル名
+	 * @return 読み取り専用のファイルの内容
+	 * @throws IOException
+	 *             読めなかった場合
+	 */
+	public static ByteBuffer file2buffer(Context context, String fileName)
+			throws IOException {
+		byte[] pendingData = getPendingWrite(resolveFile(context, fileName));
+		if (pendingData != null) {
+			return ByteBuffer.wrap(pendingData).asReadOnlyBuffer();
+		}
+		FileInputStream in = openInput(context, fileName);
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if (size < MAP_THRESHOLD) {
+				return ByteBuffer.wrap(readFully(channel, fileName))
+						.asReadOnlyBuffer();
+			}
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * 読み込み用にファイルを開く
+	 *
+	 * @param context
+	 *            コンテキスト（コレがNULLの場合は任意の場所から読める）
+	 * @param fileName
+	 *            ファイル名
+	 * @return
+	 * @throws IOException
+	 */
+	private static FileInputStream openInput(Context context, String fileName)
+			throws IOException {
+		if (context != null) {
+			return context.openFileInput(fileName);
+		}
+		return new FileInputStream(new File(fileName));
+	}
+
+	/**
+	 * 文字列をファイルへ保存する UTF-8で書く
 	 *
 	 * @param context
 	 *            　コンテキスト（コレがNULLの場合は任意の場所に保存）
 	 * @param str
 	 * @param fileName
 	 *            ファイル名
-	 * @return 成否
+	 * @throws IOException
+	 *             保存できなかった場合
 	 */
-	public static boolean str2file(Context context, String str, String fileName) {
-		return data2file(context, str.getBytes(), fileName);
+	public static void str2file(Context context, String str, String fileName)
+			throws IOException {
+		data2file(context, str.getBytes(DEFAULT_CHARSET), fileName);
 	}
 
 	/**
 	 * バイトデータをファイルへ保存する
+	 * 一時ファイルに書いてディスクに同期してから名前を変えるので、
+	 * 途中で落ちても元のファイルか新しいファイルのどちらかが残る
+	 * 一時ファイルは保存先と同じディレクトリに呼び出しごとに別の名前で作るので、
+	 * 同じファイルへの保存が重なっても互いの書きかけを壊さない
 	 *
 	 * @param context
 	 *            コンテキスト（コレがNULLの場合は任意の場所に保存）
@@ -329,34 +509,224 @@ public class Utility {
 	 *            内容のバイト列
 	 * @param fileName
 	 *            ファイル名（コンテキストがNULLの時はフルパス）
-	 * @return　成否
+	 * @throws IOException
+	 *             保存できなかった場合
 	 */
-	public static boolean data2file(Context context, byte[] data,
-			String fileName) {
-		boolean ret = false;
-		OutputStream out = null;
-
+	public static void data2file(Context context, byte[] data, String fileName)
+			throws IOException {
+		File outFile = resolveFile(context, fileName);
+		File tempFile = File.createTempFile(outFile.getName() + ".tmp", null,
+				outFile.getParentFile());
+		boolean success = false;
 		try {
+			FileOutputStream out = new FileOutputStream(tempFile);
+			try {
+				out.write(data, 0, data.length);
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
 			if (context != null) {
-				out = context.openFileOutput(fileName,
-						Context.MODE_WORLD_READABLE);
-			} else {
-				File outFile = new File(fileName);
-				out = new FileOutputStream(outFile);
+				// openFileOutputで作っていた時と同じく他のアプリから読めるようにする
+				tempFile.setReadable(true, false);
 			}
-			out.write(data, 0, data.length);
-			out.close();
-			ret = true;
-		} catch (Exception e) {
-			try {
-				if (out != null) {
-					out.close();
-				}
-			} catch (Exception e2) {
-
+			if (!tempFile.renameTo(outFile)) {
+				throw new IOException("cannot rename " + tempFile + " to "
+						+ outFile);
+			}
+			success = true;
+		} finally {
+			if (!success) {
+				tempFile.delete();
 			}
 		}
-		return ret;
+	}
+
+	/**
+	 * 文字列の保存を予約する UTF-8で書く
+	 *
+	 * @param context
+	 *            　コンテキスト（コレがNULLの場合は任意の場所に保存）
+	 * @param str
+	 * @param fileName
+	 *            ファイル名
+	 */
+	public static void str2fileLater(Context context, String str,
+			String fileName) {
+		data2fileLater(context, str.getBytes(DEFAULT_CHARSET), fileName);
+	}
+
+	/**
+	 * バイトデータの保存を予約する
+	 * 少し遅らせてバックグラウンドで保存し、その間に同じファイルへの保存があれば最後の内容だけを書く
+	 * 予約した内容はfile2data,file2strで読める
+	 *
+	 * @param context
+	 *            コンテキスト（コレがNULLの場合は任意の場所に保存）
+	 * @param data
+	 *            内容のバイト列 呼び出し後に書き換えないこと
+	 * @param fileName
+	 *            ファイル名（コンテキストがNULLの時はフルパス）
+	 */
+	public static void data2fileLater(Context context, byte[] data,
+			String fileName) {
+		getWriteBehind().write(resolveFile(context, fileName), data);
+	}
+
+	/**
+	 * 予約した保存がすべて終わるまで待つ アプリを終わらせる直前など、待つ必要がある時だけ呼ぶ
+	 */
+	public static void flushWrites() {
+		WriteBehind writer;
+		synchronized (Utility.class) {
+			writer = writeBehind;
+		}
+		if (writer != null) {
+			writer.flush();
+		}
+	}
+
+	/**
+	 * 予約した保存を遅らせずにすぐ始める 終わるのは待たない
+	 * 画面が前面から外れる時など、メインスレッドを止めたくない場合に呼ぶ
+	 */
+	public static void flushWritesLater() {
+		WriteBehind writer;
+		synchronized (Utility.class) {
+			writer = writeBehind;
+		}
+		if (writer != null) {
+			writer.flushLater();
+		}
+	}
+
+	/**
+	 * file2dataをバックグラウンドで行う 結果は呼び出したスレッドのLooperで受け取る
+	 *
+	 * @param context
+	 * @param fileName
+	 * @param callback
+	 * @return 取り消しに使う
+	 */
+	public static AsyncFileIO.Request file2dataAsync(Context context,
+			String fileName, AsyncFileIO.Callback<byte[]> callback) {
+		return AsyncFileIO.file2data(context, fileName, callback);
+	}
+
+	/**
+	 * file2strをバックグラウンドで行う 結果は呼び出したスレッドのLooperで受け取る
+	 *
+	 * @param context
+	 * @param fileName
+	 * @param callback
+	 * @return 取り消しに使う
+	 */
+	public static AsyncFileIO.Request file2strAsync(Context context,
+			String fileName, AsyncFileIO.Callback<String> callback) {
+		return AsyncFileIO.file2str(context, fileName, callback);
+	}
+
+	/**
+	 * data2fileをバックグラウンドで行う 同じファイルの読み込みはこの保存の後に行われる
+	 *
+	 * @param context
+	 * @param data
+	 *            内容のバイト列 呼び出し後に書き換えないこと
+	 * @param fileName
+	 * @param callback
+	 *            不要ならnull
+	 * @return 取り消しに使う
+	 */
+	public static AsyncFileIO.Request data2fileAsync(Context context,
+			byte[] data, String fileName, AsyncFileIO.Callback<Void> callback) {
+		return AsyncFileIO.data2file(context, data, fileName, callback);
+	}
+
+	/**
+	 * str2fileをバックグラウンドで行う 同じファイルの読み込みはこの保存の後に行われる
+	 *
+	 * @param context
+	 * @param str
+	 * @param fileName
+	 * @param callback
+	 *            不要ならnull
+	 * @return 取り消しに使う
+	 */
+	public static AsyncFileIO.Request str2fileAsync(Context context,
+			String str, String fileName, AsyncFileIO.Callback<Void> callback) {
+		return AsyncFileIO.str2file(context, str, fileName, callback);
+	}
+
+	/**
+	 * 保存の予約を受け付けるクラス 最初に使う時に生成する
+	 *
+	 * @return
+	 */
+	private static synchronized WriteBehind getWriteBehind() {
+		if (writeBehind == null) {
+			writeBehind = new WriteBehind(WRITE_BEHIND_DELAY);
+		}
+		return writeBehind;
+	}
+
+	/**
+	 * 保存待ちの内容
+	 *
+	 * @param file
+	 * @return 保存待ちでない場合はnull
+	 */
+	private static byte[] getPendingWrite(File file) {
+		WriteBehind writer;
+		synchronized (Utility.class) {
+			writer = writeBehind;
+		}
+		return writer != null ? writer.getPending(file) : null;
+	}
+
+	/**
+	 * 保存待ちの内容を捨てる 後から受け付けた保存で上書きする時に呼ぶ
+	 *
+	 * @param file
+	 */
+	static void discardPendingWrite(File file) {
+		WriteBehind writer;
+		synchronized (Utility.class) {
+			writer = writeBehind;
+		}
+		if (writer != null) {
+			writer.discard(file);
+		}
+	}
+
+	/**
+	 * 予約した保存が書き込み中なら書き終わるまで待つ
+	 * 後から受け付けた保存が、古い内容に上書きされないようにする
+	 *
+	 * @param file
+	 */
+	static void awaitPendingWrite(File file) {
+		WriteBehind writer;
+		synchronized (Utility.class) {
+			writer = writeBehind;
+		}
+		if (writer != null) {
+			writer.awaitWriting(file);
+		}
+	}
+
+	/**
+	 * ファイル名から保存先を求める
+	 *
+	 * @param context
+	 *            コンテキスト（コレがNULLの場合はfileNameをパスとして扱う）
+	 * @param fileName
+	 * @return
+	 */
+	static File resolveFile(Context context, String fileName) {
+		if (context != null) {
+			return context.getFileStreamPath(fileName);
+		}
+		return new File(fileName);
 	}
 
 }
\ No newline at end of file
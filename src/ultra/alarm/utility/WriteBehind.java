@@ -0,0 +1,219 @@
+package ultra.alarm.utility;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * ファイルへの保存を遅らせてバックグラウンドで行うクラス
+ * 同じファイルへの保存が短い間に続いた場合は、最後の内容だけを一度書く
+ *
+ * @author maro
+ *
+ */
+public class WriteBehind {
+	/**
+	 * ログのタグ
+	 */
+	private static final String TAG = "WriteBehind";
+
+	/**
+	 * 保存を遅らせる時間(ミリ秒)
+	 */
+	private final long delayMillis;
+	/**
+	 * 書き込み用スレッド
+	 */
+	private final HandlerThread thread;
+	private final Handler handler;
+	/**
+	 * 保存待ちの内容 キーはファイルの絶対パス
+	 */
+	private final HashMap<String, byte[]> pending = new HashMap<String, byte[]>();
+	/**
+	 * 書き込み中のファイルの絶対パス pendingで保護する
+	 */
+	private String writing;
+
+	/**
+	 * 保存待ちの内容をすべて書く処理
+	 */
+	private final Runnable writeTask = new Runnable() {
+		@Override
+		public void run() {
+			writePending();
+		}
+	};
+
+	/**
+	 * コンストラクタ
+	 *
+	 * @param delayMillis
+	 *            保存を遅らせる時間(ミリ秒)
+	 */
+	public WriteBehind(long delayMillis) {
+		this.delayMillis = delayMillis;
+		thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		handler = new Handler(thread.getLooper());
+	}
+
+	/**
+	 * 保存を予約する 既に予約されている同じファイルの内容は置き換える
+	 *
+	 * @param file
+	 *            保存先
+	 * @param data
+	 *            内容 呼び出し後に書き換えないこと
+	 */
+	public void write(File file, byte[] data) {
+		synchronized (pending) {
+			boolean scheduled = !pending.isEmpty();
+			pending.put(file.getAbsolutePath(), data);
+			if (!scheduled) {
+				handler.postDelayed(writeTask, delayMillis);
+			}
+		}
+	}
+
+	/**
+	 * 保存待ちの内容を取得する 書き込みの前に読む場合に使う
+	 *
+	 * @param file
+	 * @return 保存待ちでない場合はnull
+	 */
+	public byte[] getPending(File file) {
+		synchronized (pending) {
+			return pending.get(file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * 保存待ちの内容を捨てる 同じファイルへ別の方法で新しい内容を書く時に呼ぶ
+	 * 既に書き始めている内容は止められないので、書く前にawaitWritingで終わるのを待つこと
+	 *
+	 * @param file
+	 */
+	public void discard(File file) {
+		synchronized (pending) {
+			pending.remove(file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * ファイルを書き込み中なら書き終わるまで待つ
+	 * 書き込み用スレッドでないスレッドから呼ぶ
+	 *
+	 * @param file
+	 */
+	public void awaitWriting(File file) {
+		String path = file.getAbsolutePath();
+		synchronized (pending) {
+			while (path.equals(writing)) {
+				try {
+					pending.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * 保存待ちの内容をすべて書き終わるまで待つ 終了時に呼ぶ
+	 */
+	public void flush() {
+		if (Thread.currentThread() == thread) {
+			writePending();
+			return;
+		}
+		final Object done = new Object();
+		final boolean[] finished = new boolean[1];
+		synchronized (done) {
+			handler.postAtFrontOfQueue(new Runnable() {
+				@Override
+				public void run() {
+					writePending();
+					synchronized (done) {
+						finished[0] = true;
+						done.notifyAll();
+					}
+				}
+			});
+			while (!finished[0]) {
+				try {
+					done.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * 保存待ちの内容をすぐに書き始める 書き終わるのは待たない
+	 */
+	public void flushLater() {
+		handler.removeCallbacks(writeTask);
+		handler.postAtFrontOfQueue(writeTask);
+	}
+
+	/**
+	 * 保存待ちの内容を書いてスレッドを終わらせる
+	 */
+	public void quit() {
+		flush();
+		thread.quit();
+	}
+
+	/**
+	 * 保存待ちの内容をすべて書く 書き込み用スレッドで呼ぶ
+	 */
+	private void writePending() {
+		HashMap<String, byte[]> writes;
+		synchronized (pending) {
+			if (pending.isEmpty()) {
+				return;
+			}
+			handler.removeCallbacks(writeTask);
+			writes = new HashMap<String, byte[]>(pending);
+		}
+		for (Iterator<String> it = writes.keySet().iterator(); it.hasNext();) {
+			String path = it.next();
+			byte[] data = writes.get(path);
+			synchronized (pending) {
+				// 捨てられたか新しい内容に置き換えられたものは書かない
+				if (pending.get(path) != data) {
+					continue;
+				}
+				writing = path;
+			}
+			try {
+				Utility.data2file(null, data, path);
+			} catch (IOException e) {
+				Log.w(TAG, "failed to write " + path, e);
+			}
+			synchronized (pending) {
+				writing = null;
+				pending.notifyAll();
+				// 書いている間に新しい内容が来ていなければ保存待ちから外す
+				if (pending.get(path) == data) {
+					pending.remove(path);
+				}
+			}
+		}
+		synchronized (pending) {
+			if (!pending.isEmpty()) {
+				handler.postDelayed(writeTask, delayMillis);
+			}
+		}
+	}
+}